@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.TimeZoneChangedReceiver;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*
+    Checks the day labels Utility gets from DayLabels against the formatting they replaced,
+    which is kept below, and that they follow the locale and the time zone.
+ */
+public class TestDayLabels extends AndroidTestCase {
+    private static final int DAYS = 21;
+
+    private Locale mLocale;
+    private TimeZone mTimeZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocale = Locale.getDefault();
+        mTimeZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Locale.setDefault(mLocale);
+        setTimeZone(mTimeZone);
+        super.tearDown();
+    }
+
+    private void setTimeZone(TimeZone timeZone) {
+        TimeZone.setDefault(timeZone);
+        new TimeZoneChangedReceiver().onReceive(mContext,
+                new Intent(Intent.ACTION_TIMEZONE_CHANGED));
+    }
+
+    public void testLabels() {
+        checkLabels("the default locale and time zone");
+    }
+
+    public void testLocales() {
+        for (Locale locale : new Locale[]{Locale.FRENCH, Locale.GERMAN, Locale.JAPANESE}) {
+            Locale.setDefault(locale);
+            checkLabels(locale.toString());
+        }
+    }
+
+    public void testTimeZones() {
+        for (String timeZone : new String[]{"UTC", "Pacific/Kiritimati", "America/Los_Angeles"}) {
+            setTimeZone(TimeZone.getTimeZone(timeZone));
+            checkLabels(timeZone);
+        }
+    }
+
+    public void testMemoized() {
+        long date = System.currentTimeMillis() + 10 * DateUtils.DAY_IN_MILLIS;
+        assertSame(Utility.getFriendlyDayString(mContext, date, false),
+                Utility.getFriendlyDayString(mContext, date, false));
+        // The same day at another time
+        assertSame(Utility.getDayName(mContext, date),
+                Utility.getDayName(mContext, WeatherContract.normalizeDate(date)));
+    }
+
+    /*
+        Checks every kind of label of the days from a week ago to two weeks from now, at their
+        start and in the afternoon.
+     */
+    private void checkLabels(String what) {
+        int today = WeatherContract.getEpochDay(System.currentTimeMillis());
+        for (int day = today - 7; day < today + DAYS - 7; day++) {
+            long dayStart = WeatherContract.getDayStart(day);
+            for (long date : new long[]{dayStart, dayStart + 15 * DateUtils.HOUR_IN_MILLIS}) {
+                String message = "Error: labels of " + date + " in " + what;
+                assertEquals(message, oldFriendlyDayString(mContext, date, false),
+                        Utility.getFriendlyDayString(mContext, date, false));
+                assertEquals(message, oldFriendlyDayString(mContext, date, true),
+                        Utility.getFriendlyDayString(mContext, date, true));
+                assertEquals(message, oldFullFriendlyDayString(mContext, date),
+                        Utility.getFullFriendlyDayString(mContext, date));
+                assertEquals(message, oldDayName(mContext, date),
+                        Utility.getDayName(mContext, date));
+                assertEquals(message, oldFormattedMonthDay(date),
+                        Utility.getFormattedMonthDay(mContext, date));
+            }
+        }
+    }
+
+    // The formatting DayLabels replaced, also timed by TestDayLabelsBenchmark
+    static String oldFriendlyDayString(Context context, long dateInMillis,
+                                       boolean displayLongToday) {
+        int day = WeatherContract.getEpochDay(dateInMillis);
+        int currentDay = WeatherContract.getEpochDay(System.currentTimeMillis());
+
+        // If the date we're building the String for is today's date, the format
+        // is "Today, June 24"
+        if (displayLongToday && day == currentDay) {
+            String today = context.getString(R.string.today);
+            int formatId = R.string.format_full_friendly_date;
+            return String.format(context.getString(
+                    formatId,
+                    today,
+                    oldFormattedMonthDay(dateInMillis)));
+        } else if ( day < currentDay + 7 ) {
+            // If the input date is less than a week in the future, just return the day name.
+            return oldDayName(context, dateInMillis);
+        } else {
+            // Otherwise, use the form "Mon Jun 3"
+            SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
+            return shortenedDateFormat.format(dateInMillis);
+        }
+    }
+
+    static String oldFullFriendlyDayString(Context context, long dateInMillis) {
+        String day = oldDayName(context, dateInMillis);
+        int formatId = R.string.format_full_friendly_date;
+        return String.format(context.getString(
+                formatId,
+                day,
+                oldFormattedMonthDay(dateInMillis)));
+    }
+
+    static String oldDayName(Context context, long dateInMillis) {
+        int day = WeatherContract.getEpochDay(dateInMillis);
+        int currentDay = WeatherContract.getEpochDay(System.currentTimeMillis());
+        if (day == currentDay) {
+            return context.getString(R.string.today);
+        } else if ( day == currentDay +1 ) {
+            return context.getString(R.string.tomorrow);
+        } else {
+            // Otherwise, the format is just the day of the week (e.g "Wednesday".
+            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
+            return dayFormat.format(dateInMillis);
+        }
+    }
+
+    static String oldFormattedMonthDay(long dateInMillis) {
+        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
+        SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
+        String monthDayString = monthDayFormat.format(dateInMillis);
+        return monthDayString;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Compares labelling the days of a two week forecast, the way the forecast list and the
+    detail view do, with the formatting DayLabels replaced, kept in TestDayLabels.  Times and
+    the objects allocated per label are logged under this class's name.
+ */
+@LargeTest
+public class TestDayLabelsBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestDayLabelsBenchmark.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int PASSES = 200;
+    // Friendly, friendly with a long today, and full friendly
+    private static final int LABELS_PER_DAY = 3;
+
+    @SuppressWarnings("deprecation")
+    public void testLabels() {
+        long[] dates = new long[DAYS];
+        int today = WeatherContract.getEpochDay(System.currentTimeMillis());
+        for (int i = 0; i < DAYS; i++) {
+            dates[i] = WeatherContract.getDayStart(today + i);
+        }
+        // Warm up both, and fill the memo
+        labelOld(dates);
+        labelMemoized(dates);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            labelOld(dates);
+        }
+        long oldNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int oldAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            labelMemoized(dates);
+        }
+        long memoizedNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int memoizedAllocations = Debug.getThreadAllocCount();
+
+        int labels = PASSES * DAYS * LABELS_PER_DAY;
+        Log.i(LOG_TAG, "Labelling a day: formatting " + oldNanos / labels / 1000 + "us and " +
+                oldAllocations / labels + " allocations, memoized " +
+                memoizedNanos / labels / 1000 + "us and " + memoizedAllocations / labels +
+                " allocations");
+    }
+
+    private void labelOld(long[] dates) {
+        for (long date : dates) {
+            TestDayLabels.oldFriendlyDayString(mContext, date, false);
+            TestDayLabels.oldFriendlyDayString(mContext, date, true);
+            TestDayLabels.oldFullFriendlyDayString(mContext, date);
+        }
+    }
+
+    private void labelMemoized(long[] dates) {
+        for (long date : dates) {
+            Utility.getFriendlyDayString(mContext, date, false);
+            Utility.getFriendlyDayString(mContext, date, true);
+            Utility.getFullFriendlyDayString(mContext, date);
+        }
+    }
+}
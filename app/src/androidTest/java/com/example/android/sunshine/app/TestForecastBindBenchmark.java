@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.MatrixCursor;
+import android.preference.PreferenceManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+import android.widget.AbsListView;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Measures the main thread's share of showing a forecast row: formatting the row and binding
+    it, as binding did before ForecastLoader formatted the rows, against binding the formatted
+    row alone.  Times are logged under this class's name, per row, which is what a frame that
+    scrolls a new row into view pays for it.
+ */
+@LargeTest
+public class TestForecastBindBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestForecastBindBenchmark.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int PASSES = 200;
+
+    private String mArtPack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The art that comes with the app, so that binding doesn't wait on Glide
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String artPackKey = mContext.getString(R.string.pref_art_pack_key);
+        mArtPack = prefs.getString(artPackKey, null);
+        prefs.edit().putString(artPackKey,
+                mContext.getString(R.string.pref_art_pack_sunshine)).commit();
+        // Rather than wait for the preference listener on the main thread
+        SettingsSnapshot.refresh(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        prefs.edit().putString(mContext.getString(R.string.pref_art_pack_key), mArtPack).commit();
+        SettingsSnapshot.refresh(mContext);
+        super.tearDown();
+    }
+
+    public void testBind() {
+        Context context = new ContextThemeWrapper(mContext, R.style.AppTheme);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "date", "short_desc", "max",
+                "min", "location_setting", "weather_id", "coord_lat", "coord_long"});
+        for (int day = 0; day < DAYS; day++) {
+            cursor.addRow(new Object[]{day, today + day * DateUtils.DAY_IN_MILLIS, "Rain", 21.5,
+                    12.0, "99705", 500 + day % 2 * 300, 64.7488, -147.353});
+        }
+
+        ForecastAdapter adapter = new ForecastAdapter(context, null, new View(context),
+                AbsListView.CHOICE_MODE_NONE);
+        adapter.swapCursor(new ForecastLoader.ForecastCursor(cursor,
+                ForecastRows.fromCursor(context, cursor)));
+        assertEquals(DAYS, adapter.getItemCount());
+
+        RecyclerView recyclerView = new RecyclerView(context);
+        ForecastAdapter.ForecastAdapterViewHolder[] holders =
+                new ForecastAdapter.ForecastAdapterViewHolder[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            holders[i] = adapter.onCreateViewHolder(recyclerView, adapter.getItemViewType(i));
+        }
+
+        long start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            ForecastRows.fromCursor(context, cursor);
+            for (int i = 0; i < DAYS; i++) {
+                adapter.onBindViewHolder(holders[i], i);
+            }
+        }
+        long formatAndBindNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int i = 0; i < DAYS; i++) {
+                adapter.onBindViewHolder(holders[i], i);
+            }
+        }
+        long bindNanos = System.nanoTime() - start;
+
+        assertEquals(context.getString(R.string.format_full_friendly_date,
+                        context.getString(R.string.today),
+                        Utility.getFormattedMonthDay(context, today)),
+                holders[0].mDateView.getText().toString());
+        cursor.close();
+
+        Log.i(LOG_TAG, "Formatting and binding a row " +
+                formatAndBindNanos / PASSES / DAYS / 1000 + "us, binding a formatted row " +
+                bindNanos / PASSES / DAYS / 1000 + "us");
+    }
+}
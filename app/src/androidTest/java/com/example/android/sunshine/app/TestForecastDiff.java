@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.MatrixCursor;
+import android.support.v7.widget.RecyclerView;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestForecastDiff extends AndroidTestCase {
+    // Laid out like ForecastFragment's FORECAST_COLUMNS
+    private static final String[] COLUMNS = {"_id", "date", "short_desc", "max", "min",
+            "location_setting", "weather_id", "coord_lat", "coord_long"};
+
+    private static final long TODAY = 1419033600000L;
+
+    /*
+        Builds rows for the days from the first one, with the same weather on every day but the
+        ones given a different weather id.
+     */
+    private ForecastRows buildRows(int firstDay, int days, int... rainyDays) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int day = firstDay; day < firstDay + days; day++) {
+            int weatherId = 800;
+            for (int rainyDay : rainyDays) {
+                if (rainyDay == day) {
+                    weatherId = 500;
+                }
+            }
+            cursor.addRow(new Object[]{day, TODAY + day * DateUtils.DAY_IN_MILLIS, "Clear",
+                    21.5, 12.0, "99705", weatherId, 64.7488, -147.353});
+        }
+        ForecastRows rows = ForecastRows.fromCursor(mContext, cursor);
+        cursor.close();
+        return rows;
+    }
+
+    public void testFromCursor() {
+        ForecastRows rows = buildRows(0, 3, 1);
+        assertEquals(3, rows.size());
+        assertEquals(TODAY + DateUtils.DAY_IN_MILLIS, rows.getDate(1));
+        assertEquals(500, rows.getWeatherId(1));
+        assertEquals(800, rows.getWeatherId(2));
+        assertEquals(21.5, rows.getHigh(0), 0);
+        assertEquals(12.0, rows.getLow(0), 0);
+        assertSame(ForecastRows.EMPTY, ForecastRows.fromCursor(mContext, null));
+    }
+
+    public void testNoChange() {
+        ForecastDiff diff = ForecastDiff.compute(buildRows(0, 14), buildRows(0, 14));
+        assertEquals(0, diff.getRangeCount());
+    }
+
+    public void testDayRollover() {
+        // A sync the next day: today is gone and a day is added at the end
+        List<String> notified = dispatch(buildRows(0, 14), buildRows(1, 14));
+        assertEquals("[removed 0+1, inserted 13+1]", notified.toString());
+    }
+
+    public void testChangedDays() {
+        List<String> notified = dispatch(buildRows(0, 14), buildRows(0, 14, 3, 4, 9));
+        assertEquals("[changed 3+2, changed 9+1]", notified.toString());
+    }
+
+    public void testShorterForecast() {
+        // Two days gone at the start and three at the end, and a day changed in between
+        List<String> notified = dispatch(buildRows(0, 14), buildRows(2, 9, 5));
+        assertEquals("[removed 0+2, changed 3+1, removed 9+3]", notified.toString());
+    }
+
+    public void testUnsorted() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[]{1, TODAY + DateUtils.DAY_IN_MILLIS, "Clear", 21.5, 12.0,
+                "99705", 800, 64.7488, -147.353});
+        cursor.addRow(new Object[]{2, TODAY, "Clear", 21.5, 12.0, "99705", 800, 64.7488,
+                -147.353});
+        ForecastRows unsorted = ForecastRows.fromCursor(mContext, cursor);
+        cursor.close();
+        assertNull(ForecastDiff.compute(buildRows(0, 2), unsorted));
+        assertNull(ForecastDiff.compute(unsorted, buildRows(0, 2)));
+    }
+
+    /*
+        Dispatches the diff between the rows to an adapter, and checks that the notifications
+        turn the old list into the new one.
+     */
+    private static List<String> dispatch(ForecastRows oldRows, ForecastRows newRows) {
+        ForecastDiff diff = ForecastDiff.compute(oldRows, newRows);
+        assertNotNull(diff);
+
+        final List<Long> dates = new ArrayList<>();
+        for (int i = 0; i < oldRows.size(); i++) {
+            dates.add(oldRows.getDate(i));
+        }
+        final List<String> notified = new ArrayList<>();
+        RecyclerView.Adapter adapter = new RecyclerView.Adapter() {
+            @Override
+            public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+                return null;
+            }
+
+            @Override
+            public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            }
+
+            @Override
+            public int getItemCount() {
+                return dates.size();
+            }
+        };
+        final ForecastRows rows = newRows;
+        adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                notified.add("changed " + positionStart + "+" + itemCount);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                notified.add("inserted " + positionStart + "+" + itemCount);
+                for (int i = positionStart; i < positionStart + itemCount; i++) {
+                    dates.add(i, rows.getDate(i));
+                }
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                notified.add("removed " + positionStart + "+" + itemCount);
+                dates.subList(positionStart, positionStart + itemCount).clear();
+            }
+        });
+        diff.dispatchTo(adapter);
+
+        assertEquals(newRows.size(), dates.size());
+        for (int i = 0; i < newRows.size(); i++) {
+            assertEquals("Wrong date at " + i, newRows.getDate(i), (long) dates.get(i));
+        }
+        return notified;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.SharedPreferences;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+public class TestSettingsSnapshot extends AndroidTestCase {
+    private String mUnits;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUnits = getPrefs().getString(mContext.getString(R.string.pref_units_key), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getPrefs().edit().putString(mContext.getString(R.string.pref_units_key), mUnits).commit();
+        SettingsSnapshot.refresh(mContext);
+        super.tearDown();
+    }
+
+    private SharedPreferences getPrefs() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    public void testReadsSettings() {
+        SharedPreferences prefs = getPrefs();
+        SettingsSnapshot settings = SettingsSnapshot.get(mContext);
+        assertEquals(prefs.getString(mContext.getString(R.string.pref_location_key),
+                mContext.getString(R.string.pref_location_default)),
+                settings.getLocationSetting());
+        String sunshineArtPack = mContext.getString(R.string.pref_art_pack_sunshine);
+        assertEquals(prefs.getString(mContext.getString(R.string.pref_art_pack_key),
+                sunshineArtPack), settings.getArtPack());
+        assertEquals(sunshineArtPack.equals(settings.getArtPack()),
+                settings.usingLocalGraphics());
+        assertSame(settings, SettingsSnapshot.get(mContext));
+    }
+
+    public void testChangeEvents() {
+        boolean metric = SettingsSnapshot.get(mContext).isMetric();
+        final int[] changes = new int[1];
+        final boolean[] onMainThread = new boolean[1];
+        SettingsSnapshot.OnSettingsChangedListener listener =
+                new SettingsSnapshot.OnSettingsChangedListener() {
+                    @Override
+                    public void onSettingsChanged(SettingsSnapshot settings, int changed) {
+                        onMainThread[0] = Looper.myLooper() == Looper.getMainLooper();
+                        changes[0] |= changed;
+                    }
+                };
+        SettingsSnapshot.registerListener(listener);
+        try {
+            // The preference listener refreshes the snapshot on the main thread
+            getPrefs().edit().putString(mContext.getString(R.string.pref_units_key),
+                    mContext.getString(metric ? R.string.pref_units_imperial :
+                            R.string.pref_units_metric)).commit();
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return changes[0] != 0;
+                }
+            }.run();
+        } finally {
+            SettingsSnapshot.unregisterListener(listener);
+        }
+
+        assertEquals(SettingsSnapshot.CHANGED_UNITS, changes[0]);
+        assertTrue("Error: Listeners should be told on the main thread", onMainThread[0]);
+        assertEquals(!metric, SettingsSnapshot.get(mContext).isMetric());
+        assertEquals(!metric, Utility.isMetric(mContext));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/*
+    Compares looking up what is shown for a condition code, its icon, art, art url and
+    description, in the WeatherConditions table with the chains it replaced, kept in
+    TestWeatherConditions.  The codes are the ones a forecast mostly has, from the ends of the
+    chains as well as their starts.  Times are logged under this class's name.
+ */
+@LargeTest
+public class TestWeatherConditionsBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestWeatherConditionsBenchmark.class.getSimpleName();
+
+    private static final int[] CODES = {200, 301, 500, 501, 511, 600, 701, 741, 800, 801, 803,
+            804, 906, 962};
+    private static final int PASSES = 2000;
+
+    public void testLookups() {
+        String artPack = mContext.getString(R.string.pref_art_pack_sunshine);
+        // Warm up both, and the table's caches
+        lookUpOld(artPack);
+        lookUpTable(artPack);
+
+        int oldChecksum = 0;
+        long start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            oldChecksum += lookUpOld(artPack);
+        }
+        long oldNanos = System.nanoTime() - start;
+
+        int tableChecksum = 0;
+        start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            tableChecksum += lookUpTable(artPack);
+        }
+        long tableNanos = System.nanoTime() - start;
+
+        // Both found the same
+        assertEquals(oldChecksum, tableChecksum);
+
+        int lookups = PASSES * CODES.length;
+        Log.i(LOG_TAG, "Looking up a condition: chains " + oldNanos / lookups + "ns, table " +
+                tableNanos / lookups + "ns");
+    }
+
+    private int lookUpOld(String artPack) {
+        int checksum = 0;
+        for (int weatherId : CODES) {
+            checksum += TestWeatherConditions.oldIconResource(weatherId);
+            checksum += TestWeatherConditions.oldArtResource(weatherId);
+            String artUrl = TestWeatherConditions.oldArtUrl(artPack, weatherId);
+            checksum += artUrl == null ? 0 : artUrl.length();
+            checksum += TestWeatherConditions.oldString(mContext, weatherId).length();
+        }
+        return checksum;
+    }
+
+    private int lookUpTable(String artPack) {
+        int checksum = 0;
+        for (int weatherId : CODES) {
+            checksum += WeatherConditions.getIconResource(weatherId);
+            checksum += WeatherConditions.getArtResource(weatherId);
+            String artUrl = WeatherConditions.getArtUrl(artPack, weatherId);
+            checksum += artUrl == null ? 0 : artUrl.length();
+            checksum += WeatherConditions.getString(mContext, weatherId).length();
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the ways of inserting many weather rows: SQLiteDatabase.insert() per row, the way
+    bulkInsert() used to, bulkInsert() with its compiled statement, and a column batch sent
+    through call().  Times are logged under this class's name.
+ */
+@LargeTest
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final int DAYS_PER_LOCATION = 100;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testInsert10kRows() {
+        benchmark(10000);
+    }
+
+    public void testInsert100kRows() {
+        benchmark(100000);
+    }
+
+    private void benchmark(int rows) {
+        long[] locationIds = insertLocations(rows / DAYS_PER_LOCATION);
+
+        ContentValues[] values = createValues(rows, locationIds);
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(rows, insertRowByRow(values));
+        long rowByRowMillis = SystemClock.elapsedRealtime() - start;
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        values = createValues(rows, locationIds);
+        start = SystemClock.elapsedRealtime();
+        assertEquals(rows, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, values));
+        long compiledMillis = SystemClock.elapsedRealtime() - start;
+        ContentValues expected = createValues(1, locationIds)[0];
+        expected.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(expected.getAsLong(WeatherEntry.COLUMN_DATE)));
+        validateFirstRow(expected);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        String batchTime = "unavailable";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            WeatherBatch batch = createBatch(rows, locationIds);
+            start = SystemClock.elapsedRealtime();
+            Bundle inserted = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_BULK_INSERT_WEATHER, null, batch.toBundle());
+            batchTime = (SystemClock.elapsedRealtime() - start) + "ms";
+            assertEquals(rows, inserted.getInt(WeatherContract.EXTRA_INSERTED_COUNT));
+            validateFirstRow(expected);
+        }
+
+        Log.i(LOG_TAG, rows + " rows over " + locationIds.length + " locations: row by row " +
+                rowByRowMillis + "ms, compiled statement " + compiledMillis +
+                "ms, column batch " + batchTime);
+    }
+
+    private long[] insertLocations(int count) {
+        long[] locationIds = new long[count];
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "benchmark" + i);
+                locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        return locationIds;
+    }
+
+    private static long getDate(int row, int locations) {
+        // Not normalized, a few hours into the day
+        return TestUtilities.TEST_DATE * 1000 + 3 * DateUtils.HOUR_IN_MILLIS +
+                (row / locations) * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static ContentValues[] createValues(int rows, long[] locationIds) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationIds[i % locationIds.length]);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, getDate(i, locationIds.length));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65.0 - i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private static WeatherBatch createBatch(int rows, long[] locationIds) {
+        WeatherBatch batch = new WeatherBatch(rows);
+        for (int i = 0; i < rows; i++) {
+            batch.add(locationIds[i % locationIds.length], getDate(i, locationIds.length), 321,
+                    "Asteroids", 75.0 + i % 10, 65.0 - i % 10, 1.2, 1.3, 5.5, 1.1);
+        }
+        return batch;
+    }
+
+    /**
+     * What bulkInsert() used to do: normalize the date and build and compile an INSERT for
+     * every row.
+     */
+    private int insertRowByRow(ContentValues[] values) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long date = value.getAsLong(WeatherEntry.COLUMN_DATE);
+                value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(date));
+                value.put(WeatherEntry.COLUMN_EPOCH_DAY, WeatherContract.getEpochDay(date));
+                if (db.insert(WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        return count;
+    }
+
+    private void validateFirstRow(ContentValues expected) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, WeatherEntry._ID + " ASC LIMIT 1");
+        TestUtilities.validateCursor("Error validating the first row", cursor, expected);
+    }
+}
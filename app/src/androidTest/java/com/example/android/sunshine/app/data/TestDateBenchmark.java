@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+/*
+    Compares the ways of normalizing dates to their day: a Time per date, the way
+    normalizeDate() used to, the arithmetic normalizeDate() does now, and a DateNormalizer,
+    which remembers the last day.  Times are logged under this class's name.
+ */
+@LargeTest
+public class TestDateBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestDateBenchmark.class.getSimpleName();
+
+    private static final int DATES = 100000;
+    // Like a sync: a few dates a day, many days in a row
+    private static final long STEP = 3 * DateUtils.HOUR_IN_MILLIS;
+
+    public void testNormalizeDates() {
+        long first = TestUtilities.TEST_DATE * 1000;
+
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < DATES; i++) {
+            sum += normalizeWithTime(first + i * STEP);
+        }
+        long timeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long arithmeticSum = 0;
+        for (int i = 0; i < DATES; i++) {
+            arithmeticSum += WeatherContract.normalizeDate(first + i * STEP);
+        }
+        long arithmeticNanos = System.nanoTime() - start;
+
+        DateNormalizer normalizer = new DateNormalizer();
+        start = System.nanoTime();
+        long normalizerSum = 0;
+        for (int i = 0; i < DATES; i++) {
+            normalizerSum += normalizer.normalize(first + i * STEP);
+        }
+        long normalizerNanos = System.nanoTime() - start;
+
+        // The sums keep the loops from being optimized away, and have to agree
+        assertEquals("Error: normalizeDate() disagrees with DateNormalizer",
+                arithmeticSum, normalizerSum);
+        Log.i(LOG_TAG, "Normalizing " + DATES + " dates: Time " + timeNanos / DATES +
+                "ns, normalizeDate() " + arithmeticNanos / DATES +
+                "ns, DateNormalizer " + normalizerNanos / DATES + "ns per date (" + sum + ")");
+    }
+
+    /**
+     * What normalizeDate() used to do, which allocates a Time and does its work in native code.
+     */
+    private static long normalizeWithTime(long date) {
+        Time time = new Time();
+        time.set(date);
+        int julianDay = Time.getJulianDay(date, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+}
@@ -18,9 +18,11 @@ package com.example.android.sunshine.app.data;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import android.test.AndroidTestCase;
 
 import java.util.HashSet;
+import java.util.Locale;
 
 public class TestDb extends AndroidTestCase {
 
@@ -55,6 +57,9 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ArchiveEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.RollupEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +96,10 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_ETAG);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_BODY_HASH);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_VALIDATED_DAY);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -115,6 +124,61 @@ public class TestDb extends AndroidTestCase {
         insertLocation();
     }
 
+    /*
+        The sync metrics table only keeps its newest MAX_ROWS rows.
+     */
+    public void testSyncMetricsRingBuffer() {
+        SQLiteDatabase db = new WeatherDbHelper(this.mContext).getWritableDatabase();
+        final int extraRows = 10;
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < WeatherContract.SyncMetricsEntry.MAX_ROWS + extraRows; i++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherContract.SyncMetricsEntry.COLUMN_SYNC_START, i);
+                values.put(WeatherContract.SyncMetricsEntry.COLUMN_PHASE,
+                        WeatherContract.SyncMetricsEntry.PHASE_SYNC);
+                values.put(WeatherContract.SyncMetricsEntry.COLUMN_WALL_TIME, 1000);
+                values.put(WeatherContract.SyncMetricsEntry.COLUMN_CPU_TIME, 500);
+                values.put(WeatherContract.SyncMetricsEntry.COLUMN_ITEMS, 1);
+                assertTrue(db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Cursor c = db.rawQuery("SELECT COUNT(*), MIN(" +
+                WeatherContract.SyncMetricsEntry.COLUMN_SYNC_START + ") FROM " +
+                WeatherContract.SyncMetricsEntry.TABLE_NAME, null);
+        assertTrue(c.moveToFirst());
+        assertEquals("Error: the sync metrics table grew past its capacity",
+                WeatherContract.SyncMetricsEntry.MAX_ROWS, c.getInt(0));
+        assertEquals("Error: the oldest sync metrics should have been dropped",
+                extraRows, c.getLong(1));
+        c.close();
+        db.close();
+    }
+
+    /*
+        The database uses write-ahead logging wherever the platform has it.
+     */
+    public void testWriteAheadLogging() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(this.mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Cursor c = db.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(c.moveToFirst());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            assertTrue(dbHelper.isWriteAheadLogging());
+            assertEquals("Error: the database should use write-ahead logging",
+                    "wal", c.getString(0).toLowerCase(Locale.US));
+        } else {
+            assertFalse(dbHelper.isWriteAheadLogging());
+        }
+        c.close();
+        db.close();
+    }
+
     /*
         Students:  Here is where you will build code to test that we can insert and query the
         database.  We've done a lot of work for you.  You'll want to look in TestUtilities
@@ -143,6 +207,8 @@ public class TestDb extends AndroidTestCase {
 
         // Second Step (Weather): Create weather values
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY,
+                WeatherContract.getEpochDay(TestUtilities.TEST_DATE));
 
         // Third Step (Weather): Insert ContentValues into database and get a row ID back
         long weatherRowId = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues);
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/*
+    Builds weather.db as each earlier version of the app left it, fills it, opens it with the
+    current WeatherDbHelper and checks that the data made it through the upgrade, into the same
+    schema a new install gets.
+ */
+public class TestDbUpgrade extends AndroidTestCase {
+    private static final String LOG_TAG = TestDbUpgrade.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "weather_upgrade.db";
+    private static final String FRESH_DATABASE_NAME = "weather_fresh.db";
+
+    // The schema of each version, as its onCreate() left it.  Written out rather than built from
+    // WeatherContract, which only knows the current one.
+    private static final String[] SCHEMA_V2 = {
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE NOT NULL, " +
+                    "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );",
+            "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+                    "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL,  " +
+                    "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+                    "UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+    };
+    private static final String[] SCHEMA_V3 = {
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE NOT NULL, " +
+                    "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL, " +
+                    "etag TEXT, last_modified TEXT, body_hash TEXT, validated_day INTEGER  );",
+            SCHEMA_V2[1]
+    };
+    private static final String[] SCHEMA_V4 = {
+            SCHEMA_V3[0],
+            SCHEMA_V3[1],
+            "CREATE TABLE sync_metrics (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "sync_start INTEGER NOT NULL, phase TEXT NOT NULL, wall_time INTEGER NOT NULL, " +
+                    "cpu_time INTEGER NOT NULL, items INTEGER NOT NULL  );",
+            "CREATE TRIGGER sync_metrics_ring_buffer AFTER INSERT ON sync_metrics BEGIN " +
+                    "DELETE FROM sync_metrics WHERE _id <= NEW._id - 2000; END;"
+    };
+    private static final String[] SCHEMA_V5 = {
+            SCHEMA_V4[0],
+            SCHEMA_V4[1],
+            SCHEMA_V4[2],
+            SCHEMA_V4[3],
+            "CREATE INDEX weather_location_date ON weather (location_id, date);"
+    };
+    private static final String[] SCHEMA_V6 = {
+            SCHEMA_V4[0],
+            "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, epoch_day INTEGER NOT NULL, short_desc TEXT NOT NULL, " +
+                    "weather_id INTEGER NOT NULL,min REAL NOT NULL, max REAL NOT NULL, " +
+                    "humidity REAL NOT NULL, pressure REAL NOT NULL, wind REAL NOT NULL, " +
+                    "degrees REAL NOT NULL,  FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+                    "UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+            "CREATE INDEX weather_location_day ON weather (location_id, epoch_day);",
+            SCHEMA_V4[2],
+            SCHEMA_V4[3]
+    };
+
+    private static final int DAYS = 14;
+    // A validated day as versions 3 to 5 stored it, a Julian day, and as an epoch day, as later
+    // versions do
+    private static final int VALIDATED_JULIAN_DAY = 2457012;
+    private static final int VALIDATED_EPOCH_DAY = 16424;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteDatabases();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabases();
+        super.tearDown();
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    public void testUpgradeFromVersion2() {
+        checkUpgrade(2, SCHEMA_V2);
+    }
+
+    public void testUpgradeFromVersion3() {
+        checkUpgrade(3, SCHEMA_V3);
+    }
+
+    public void testUpgradeFromVersion4() {
+        checkUpgrade(4, SCHEMA_V4);
+    }
+
+    public void testUpgradeFromVersion5() {
+        checkUpgrade(5, SCHEMA_V5);
+    }
+
+    public void testUpgradeFromVersion6() {
+        checkUpgrade(6, SCHEMA_V6);
+    }
+
+    public void testUpgradeFromUnknownVersionRecreates() {
+        SQLiteDatabase db = createDatabase(1, new String[] {
+                "CREATE TABLE weather (_id INTEGER PRIMARY KEY, forecast TEXT);"
+        });
+        db.close();
+
+        db = openWithHelper();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals("Error: a database too old to upgrade wasn't emptied",
+                0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals("Error: a database too old to upgrade doesn't have the current schema",
+                describeFreshSchema(), describeSchema(db));
+        db.close();
+    }
+
+    @LargeTest
+    public void testUpgradeLargeDatabase() {
+        final int locations = 200;
+        final int days = 500;
+        SQLiteDatabase db = createDatabase(WeatherDbHelper.OLDEST_UPGRADABLE_VERSION, SCHEMA_V2);
+        db.beginTransaction();
+        try {
+            for (int location = 0; location < locations; location++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "upgrade" + location);
+                insertWeather(db, WeatherDbHelper.OLDEST_UPGRADABLE_VERSION,
+                        db.insert(LocationEntry.TABLE_NAME, null, locationValues), days);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+
+        long start = SystemClock.elapsedRealtime();
+        db = openWithHelper();
+        long upgradeMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals("Error: weather rows were lost in the upgrade",
+                locations * days, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        db.close();
+        Log.i(LOG_TAG, "Upgrading " + locations * days + " weather rows from version " +
+                WeatherDbHelper.OLDEST_UPGRADABLE_VERSION + " took " + upgradeMillis + "ms");
+    }
+
+    private void checkUpgrade(int version, String[] schema) {
+        SQLiteDatabase db = createDatabase(version, schema);
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        if (version >= 6) {
+            locationValues.put(LocationEntry.COLUMN_VALIDATED_DAY, VALIDATED_EPOCH_DAY);
+        } else if (version >= 3) {
+            locationValues.put(LocationEntry.COLUMN_VALIDATED_DAY, VALIDATED_JULIAN_DAY);
+        }
+        long locationRowId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        assertTrue("Error: couldn't insert a location into version " + version,
+                locationRowId != -1);
+        insertWeather(db, version, locationRowId, DAYS);
+        db.close();
+        if (version >= 3) {
+            locationValues.put(LocationEntry.COLUMN_VALIDATED_DAY, VALIDATED_EPOCH_DAY);
+        }
+
+        db = openWithHelper();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals("Error: upgrading from version " + version + " left a different schema " +
+                "than a new install", describeFreshSchema(), describeSchema(db));
+
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+        TestUtilities.validateCursor("Error: the location didn't survive the upgrade from " +
+                "version " + version, cursor, locationValues);
+
+        assertEquals("Error: weather rows were lost upgrading from version " + version,
+                DAYS, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        cursor = db.query(WeatherEntry.TABLE_NAME, null, WeatherEntry.COLUMN_DATE + " = ?",
+                new String[] {Long.toString(getDate(0))}, null, null, null);
+        weatherValues.put(WeatherEntry.COLUMN_DATE, getDate(0));
+        weatherValues.put(WeatherEntry.COLUMN_EPOCH_DAY, WeatherContract.getEpochDay(getDate(0)));
+        TestUtilities.validateCursor("Error: the weather didn't survive the upgrade from " +
+                "version " + version, cursor, weatherValues);
+        db.close();
+    }
+
+    private SQLiteDatabase createDatabase(int version, String[] schema) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE,
+                null);
+        for (String statement : schema) {
+            db.execSQL(statement);
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    private SQLiteDatabase openWithHelper() {
+        return new WeatherDbHelper(mContext, DATABASE_NAME, false,
+                WeatherDbHelper.CheckpointPolicy.DEFAULT).getWritableDatabase();
+    }
+
+    private String describeFreshSchema() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME, false,
+                WeatherDbHelper.CheckpointPolicy.DEFAULT).getReadableDatabase();
+        String schema = describeSchema(db);
+        db.close();
+        return schema;
+    }
+
+    private static long getDate(int day) {
+        return TestUtilities.TEST_DATE * 1000 + day * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static void insertWeather(SQLiteDatabase db, int version, long locationRowId,
+                                      int days) {
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        for (int day = 0; day < days; day++) {
+            weatherValues.put(WeatherEntry.COLUMN_DATE, getDate(day));
+            if (version >= 6) {
+                weatherValues.put(WeatherEntry.COLUMN_EPOCH_DAY,
+                        WeatherContract.getEpochDay(getDate(day)));
+            }
+            assertTrue("Error: couldn't insert weather", db.insert(WeatherEntry.TABLE_NAME,
+                    null, weatherValues) != -1);
+        }
+    }
+
+    /**
+     * Lists the columns of every table and the names of the indexes and triggers, which is
+     * what has to match after an upgrade.  The SQL in sqlite_master doesn't, since columns
+     * added by ALTER TABLE read differently than ones in CREATE TABLE.
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        TreeSet<String> tables = new TreeSet<String>();
+        TreeSet<String> schema = new TreeSet<String>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master WHERE name NOT LIKE " +
+                "'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                if ("table".equals(cursor.getString(0))) {
+                    tables.add(cursor.getString(1));
+                } else {
+                    schema.add(cursor.getString(0) + " " + cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String table : tables) {
+            List<String> columns = new ArrayList<String>();
+            cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                int nameIndex = cursor.getColumnIndexOrThrow("name");
+                int typeIndex = cursor.getColumnIndexOrThrow("type");
+                while (cursor.moveToNext()) {
+                    columns.add(cursor.getString(nameIndex) + " " + cursor.getString(typeIndex));
+                }
+            } finally {
+                cursor.close();
+            }
+            schema.add("table " + table + " " + columns);
+        }
+        return schema.toString();
+    }
+}
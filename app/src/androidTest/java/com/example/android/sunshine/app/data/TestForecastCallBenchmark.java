@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares reading the first day and the whole forecast of a location with query(), reading
+    every column of the cursor, with ForecastSnapshot.fetch(), which goes through call(), both
+    from the database and from the published snapshot.  Times are logged under this class's
+    name.
+ */
+@LargeTest
+public class TestForecastCallBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestForecastCallBenchmark.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int READS = 2000;
+
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, mToday + i * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testFirstDay() {
+        benchmark("the first day", 1);
+    }
+
+    public void testWholeForecast() {
+        benchmark("the whole forecast", -1);
+    }
+
+    private void benchmark(String name, int limit) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        int days = limit == -1 ? DAYS : limit;
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                mToday);
+        if (limit != -1) {
+            uri = WeatherEntry.withLimit(uri, limit, 0);
+        }
+
+        ForecastSnapshot.invalidate();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            assertEquals(days, readAll(mContext.getContentResolver().query(uri,
+                    ForecastSnapshot.SNAPSHOT_COLUMNS, null, null, null)));
+        }
+        long queryNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            assertEquals(days, ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION,
+                    mToday, limit).size());
+        }
+        long callNanos = System.nanoTime() - start;
+
+        ForecastSnapshot.load(mContext, TestUtilities.TEST_LOCATION);
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            assertEquals(days, ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION,
+                    mToday, limit).size());
+        }
+        long publishedNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, "Reading " + name + ": query() " + queryNanos / READS / 1000 +
+                "us, call() " + callNanos / READS / 1000 + "us, call() from the published " +
+                "snapshot " + publishedNanos / READS / 1000 + "us per read");
+    }
+
+    /**
+     * Reads every column of every row, like a consumer of the cursor would.
+     * @return the number of rows
+     */
+    private static int readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(ForecastSnapshot.INDEX_ID);
+                cursor.getLong(ForecastSnapshot.INDEX_DATE);
+                cursor.getInt(ForecastSnapshot.INDEX_WEATHER_ID);
+                cursor.getString(ForecastSnapshot.INDEX_SHORT_DESC);
+                cursor.getDouble(ForecastSnapshot.INDEX_MAX_TEMP);
+                cursor.getDouble(ForecastSnapshot.INDEX_MIN_TEMP);
+                cursor.getDouble(ForecastSnapshot.INDEX_HUMIDITY);
+                cursor.getDouble(ForecastSnapshot.INDEX_PRESSURE);
+                cursor.getDouble(ForecastSnapshot.INDEX_WIND_SPEED);
+                cursor.getDouble(ForecastSnapshot.INDEX_DEGREES);
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the weather/* queries of the forecast list, the detail view and the widgets the way
+    WeatherProvider used to run them, joined with the location table and filtered on the
+    location setting, with the way it runs them now, filtered on the location id and joined only
+    for location columns.  The id lookup is left out, it is cached.  Times are logged under this
+    class's name.
+ */
+@LargeTest
+public class TestLocationJoinBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestLocationJoinBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "weather_join.db";
+    private static final int LOCATIONS = 500;
+    private static final int DAYS = 14;
+    private static final int QUERIES = 2000;
+
+    // Like ForecastFragment's, DetailFragment's and ForecastSnapshot's projections
+    private static final String[] LIST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // What weather/* and weather/*/# used to filter on
+    private static final String SETTING_WITH_START_DAY_SELECTION = LocationEntry.TABLE_NAME +
+            "." + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_EPOCH_DAY + " >= ?";
+    private static final String SETTING_AND_DAY_SELECTION = LocationEntry.TABLE_NAME +
+            "." + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_EPOCH_DAY + " = ?";
+    private static final String DAY_SORT_ORDER = WeatherEntry.COLUMN_EPOCH_DAY + " ASC";
+
+    private SQLiteDatabase mDb;
+    private long[] mLocationIds;
+    private int mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, DATABASE_NAME, false,
+                WeatherDbHelper.CheckpointPolicy.DEFAULT).getWritableDatabase();
+        mFirstDay = WeatherContract.getEpochDay(TestUtilities.TEST_DATE * 1000);
+        insertWeather();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testListQuery() {
+        compare("list", LIST_COLUMNS, false);
+    }
+
+    public void testDetailQuery() {
+        compare("detail", DETAIL_COLUMNS, true);
+    }
+
+    public void testWidgetQuery() {
+        compare("widget", ForecastSnapshot.SNAPSHOT_COLUMNS, false);
+    }
+
+    private void compare(String name, String[] projection, boolean oneDay) {
+        SQLiteQueryBuilder joined = WeatherProvider.sWeatherByLocationSettingQueryBuilder;
+        String[] selectionArgs = new String[2];
+
+        long start = System.nanoTime();
+        int joinedRows = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            selectionArgs[0] = getLocationSetting(i % LOCATIONS);
+            selectionArgs[1] = Integer.toString(mFirstDay + (oneDay ? i % DAYS : 0));
+            joinedRows += count(joined.query(mDb, projection,
+                    oneDay ? SETTING_AND_DAY_SELECTION : SETTING_WITH_START_DAY_SELECTION,
+                    selectionArgs, null, null, DAY_SORT_ORDER));
+        }
+        long joinedNanos = System.nanoTime() - start;
+
+        boolean needsLocation = WeatherProvider.needsLocation(projection);
+        start = System.nanoTime();
+        int rows = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            selectionArgs[0] = Long.toString(mLocationIds[i % LOCATIONS]);
+            selectionArgs[1] = Integer.toString(mFirstDay + (oneDay ? i % DAYS : 0));
+            String selection = oneDay ? WeatherProvider.sLocationIdAndDaySelection :
+                    WeatherProvider.sLocationIdSelection + WeatherProvider.sStartDayClause;
+            rows += count(needsLocation ?
+                    joined.query(mDb, projection, selection, selectionArgs, null, null,
+                            DAY_SORT_ORDER) :
+                    mDb.query(WeatherEntry.TABLE_NAME, projection, selection, selectionArgs,
+                            null, null, DAY_SORT_ORDER));
+        }
+        long nanos = System.nanoTime() - start;
+
+        assertEquals("Error: the " + name + " query found other rows by location id",
+                joinedRows, rows);
+        assertEquals(QUERIES * (oneDay ? 1 : DAYS), rows);
+        Log.i(LOG_TAG, "The " + name + " query over " + LOCATIONS + " locations: " +
+                joinedNanos / QUERIES / 1000 + "us by location setting, " +
+                nanos / QUERIES / 1000 + "us by location id" +
+                (needsLocation ? ", joined" : ", not joined"));
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            // Fills the window, like a loader does
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getLocationSetting(int location) {
+        return "join" + location;
+    }
+
+    private void insertWeather() {
+        mLocationIds = new long[LOCATIONS];
+        WeatherBatch batch = new WeatherBatch(LOCATIONS * DAYS);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < LOCATIONS; i++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+                mLocationIds[i] = mDb.insert(LocationEntry.TABLE_NAME, null, locationValues);
+                for (int day = 0; day < DAYS; day++) {
+                    batch.add(mLocationIds[i], WeatherContract.getDayStart(mFirstDay + day), 800,
+                            "Clear", 70, 60, 50, 1000, 5, 180);
+                }
+            }
+            WeatherInserter inserter = new WeatherInserter(mDb);
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    inserter.insert(batch, i);
+                }
+            } finally {
+                inserter.close();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+}
@@ -16,20 +16,35 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -61,6 +76,16 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                ArchiveEntry.CONTENT_URI,
+                null,
+                null
+        );
+        mContext.getContentResolver().delete(
+                RollupEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +185,18 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/archive/94074
+        type = mContext.getContentResolver().getType(
+                ArchiveEntry.buildArchiveLocation(testLocation));
+        assertEquals("Error: the ArchiveEntry CONTENT_URI with location should return ArchiveEntry.CONTENT_TYPE",
+                ArchiveEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/rollup/94074/month
+        type = mContext.getContentResolver().getType(
+                RollupEntry.buildRollupLocation(testLocation, RollupEntry.PERIOD_MONTH));
+        assertEquals("Error: the RollupEntry CONTENT_URI with location and period should return RollupEntry.CONTENT_TYPE",
+                RollupEntry.CONTENT_TYPE, type);
     }
 
 
@@ -178,6 +215,9 @@ public class TestProvider extends AndroidTestCase {
 
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        // Straight into the database, so nothing fills in the epoch day
+        weatherValues.put(WeatherEntry.COLUMN_EPOCH_DAY,
+                WeatherContract.getEpochDay(TestUtilities.TEST_DATE));
 
         long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
@@ -512,4 +552,629 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    private long[] getWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    public void testUpsertWeather() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] upsertValues = createBulkInsertWeatherValues(locationRowId);
+        int writeCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherUpsertUri(), upsertValues);
+        assertEquals("Error: all new rows should have been inserted",
+                BULK_INSERT_RECORDS_TO_INSERT, writeCount);
+        long[] insertedIds = getWeatherIds();
+
+        // Sending the same forecast again shouldn't write anything
+        writeCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherUpsertUri(), createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: identical rows were written", 0, writeCount);
+
+        // Change a single day, and watch that day and the one before it
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[1].put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        Uri unchangedDayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                changedValues[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        Uri changedDayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                changedValues[1].getAsLong(WeatherEntry.COLUMN_DATE));
+
+        TestUtilities.TestContentObserver unchangedDayObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                unchangedDayUri, false, unchangedDayObserver);
+        TestUtilities.TestContentObserver changedDayObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                changedDayUri, false, changedDayObserver);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(WeatherContract.EXTRA_VALUES, changedValues);
+            Bundle upserted = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+            assertEquals(0, upserted.getInt(WeatherContract.EXTRA_INSERTED_COUNT));
+            assertEquals(1, upserted.getInt(WeatherContract.EXTRA_CHANGED_COUNT));
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1,
+                    upserted.getInt(WeatherContract.EXTRA_UNCHANGED_COUNT));
+            long[] changedLocationIds =
+                    upserted.getLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS);
+            assertEquals(1, changedLocationIds.length);
+            assertEquals(locationRowId, changedLocationIds[0]);
+        } else {
+            assertEquals(1, mContext.getContentResolver().bulkInsert(
+                    WeatherEntry.buildWeatherUpsertUri(), changedValues));
+        }
+
+        changedDayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(unchangedDayObserver);
+        unchangedDayObserver.mHT.quit();
+        assertFalse("Error: an unchanged day was notified", unchangedDayObserver.mContentChanged);
+
+        // Rows are updated in place, not replaced
+        assertTrue("Error: upserted rows should keep their _id",
+                Arrays.equals(insertedIds, getWeatherIds()));
+
+        Cursor cursor = mContext.getContentResolver().query(changedDayUri, null, null, null, null);
+        TestUtilities.validateCursor("testUpsertWeather.  Error validating the changed day",
+                cursor, changedValues[1]);
+    }
+
+    public void testForecastSnapshot() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Snapshots start today, so move the test days there
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    today + i * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        ForecastSnapshot snapshot = ForecastSnapshot.load(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, snapshot.size());
+        assertEquals(today, snapshot.getDate(0));
+        assertEquals(76.0, snapshot.getHigh(1));
+        assertEquals(0, snapshot.firstIndexOnOrAfter(System.currentTimeMillis()));
+        assertSame("Error: the loaded snapshot wasn't published",
+                snapshot, ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION));
+
+        // Writing weather drops the published snapshot
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry._ID + " = ?", new String[] {Long.toString(snapshot.getId(1))});
+        ForecastSnapshot updated = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        assertNotSame("Error: a stale snapshot was handed out", snapshot, updated);
+        assertEquals(100.0, updated.getHigh(1));
+    }
+
+    public void testWeatherWithoutLocationColumns() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        Uri locationWeatherUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] weatherColumns = {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+
+        // Read from the weather table alone
+        assertFalse(WeatherProvider.needsLocation(weatherColumns));
+        Cursor cursor = mContext.getContentResolver().query(locationWeatherUri, weatherColumns,
+                null, null, WeatherEntry.COLUMN_EPOCH_DAY + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        TestUtilities.validateCurrentRecord("testWeatherWithoutLocationColumns.  Error " +
+                "validating the weather table alone", cursor, weatherValues[0]);
+        cursor.close();
+
+        // Joined with the location
+        String[] joinedColumns = {WeatherEntry.COLUMN_DATE,
+                LocationEntry.COLUMN_LOCATION_SETTING};
+        assertTrue(WeatherProvider.needsLocation(joinedColumns));
+        assertTrue(WeatherProvider.needsLocation(null));
+        cursor = mContext.getContentResolver().query(locationWeatherUri, joinedColumns,
+                null, null, WeatherEntry.COLUMN_EPOCH_DAY + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(1));
+        cursor.close();
+
+        // A location stored again gets another id, which has to be looked up again
+        deleteAllRecordsFromProvider();
+        locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        cursor = mContext.getContentResolver().query(locationWeatherUri, weatherColumns,
+                null, null, null);
+        assertEquals("Error: weather was looked up by the id of a deleted location",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        // No location, no weather
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("nowhere"), weatherColumns, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testWeatherPaging() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        String location = TestUtilities.TEST_LOCATION;
+
+        // A limit and an offset
+        assertDates(WeatherEntry.withLimit(WeatherEntry.buildWeatherLocationWithStartDate(location,
+                getDate(weatherValues, 0)), 3, 2), weatherValues, 2, 3, 4);
+        // An offset alone
+        assertDates(WeatherEntry.withLimit(WeatherEntry.buildWeatherLocation(location), -1, 8),
+                weatherValues, 8, 9);
+        // A date range, ends included
+        assertDates(WeatherEntry.buildWeatherLocationWithDateRange(location,
+                getDate(weatherValues, 1), getDate(weatherValues, 3)), weatherValues, 1, 2, 3);
+
+        // Pages after the last date of the previous page
+        Uri firstPage = WeatherEntry.withLimit(WeatherEntry.buildWeatherLocation(location), 4, 0);
+        assertDates(firstPage, weatherValues, 0, 1, 2, 3);
+        assertDates(WeatherEntry.buildWeatherLocationAfterDate(location,
+                getDate(weatherValues, 3), 4), weatherValues, 4, 5, 6, 7);
+        assertDates(WeatherEntry.buildWeatherLocationAfterDate(location,
+                getDate(weatherValues, 7), 4), weatherValues, 8, 9);
+        assertDates(WeatherEntry.buildWeatherLocationAfterDate(location,
+                getDate(weatherValues, 9), 4), weatherValues);
+
+        try {
+            mContext.getContentResolver().query(WeatherEntry.withLimit(
+                    WeatherEntry.buildWeatherLocation(location), -2, 0), null, null, null, null);
+            fail("Error: a negative limit was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static long getDate(ContentValues[] weatherValues, int day) {
+        return weatherValues[day].getAsLong(WeatherEntry.COLUMN_DATE);
+    }
+
+    private void assertDates(Uri uri, ContentValues[] weatherValues, int... days) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[] {WeatherEntry.COLUMN_DATE}, null, null, null);
+        try {
+            assertEquals("Error: " + uri + " returned the wrong number of days",
+                    days.length, cursor.getCount());
+            for (int day : days) {
+                assertTrue(cursor.moveToNext());
+                assertEquals("Error: " + uri + " returned the wrong day",
+                        getDate(weatherValues, day), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testFetchForecast() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    today + i * DateUtils.DAY_IN_MILLIS);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        long secondDay = today + DateUtils.DAY_IN_MILLIS;
+
+        // From the database, with nothing published
+        ForecastSnapshot.invalidate();
+        ForecastSnapshot fetched = ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION,
+                secondDay, 3);
+        assertNull("Error: fetching published a snapshot",
+                ForecastSnapshot.getPublished(TestUtilities.TEST_LOCATION, today, -1));
+        assertDays(fetched, weatherValues, 1, 3);
+
+        // From the published snapshot
+        ForecastSnapshot.load(mContext, TestUtilities.TEST_LOCATION);
+        assertDays(ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION, secondDay, 3),
+                weatherValues, 1, 3);
+        assertDays(ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION, today, -1),
+                weatherValues, 0, BULK_INSERT_RECORDS_TO_INSERT);
+
+        // Days before the published ones come from the database
+        assertNull(ForecastSnapshot.getPublished(TestUtilities.TEST_LOCATION,
+                today - DateUtils.DAY_IN_MILLIS, -1));
+        assertDays(ForecastSnapshot.fetch(mContext, TestUtilities.TEST_LOCATION,
+                today - DateUtils.DAY_IN_MILLIS, 2), weatherValues, 0, 2);
+        assertEquals(0, ForecastSnapshot.fetch(mContext, "nowhere", today, -1).size());
+    }
+
+    private static void assertDays(ForecastSnapshot snapshot, ContentValues[] weatherValues,
+                                   int first, int count) {
+        assertEquals("Error: the forecast has the wrong number of days", count, snapshot.size());
+        for (int i = 0; i < count; i++) {
+            ContentValues expected = weatherValues[first + i];
+            assertEquals(expected.getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                    snapshot.getDate(i));
+            assertEquals(expected.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID).intValue(),
+                    snapshot.getWeatherId(i));
+            assertEquals(expected.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    snapshot.getDescription(i));
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), snapshot.getHigh(i));
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP), snapshot.getLow(i));
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    snapshot.getHumidity(i));
+        }
+    }
+
+    public void testArchiveWeather() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        String location = TestUtilities.TEST_LOCATION;
+        // Twenty past days, from about three weeks ago to yesterday, then today and tomorrow
+        final int pastDays = 20;
+        int firstDay = WeatherContract.getEpochDay(System.currentTimeMillis()) - pastDays;
+        ContentValues[] weatherValues = new ContentValues[pastDays + 2];
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i] = TestUtilities.createWeatherValues(locationRowId);
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.getDayStart(firstDay + i));
+            weatherValues[i].put(WeatherEntry.COLUMN_MIN_TEMP, (double) i);
+            weatherValues[i].put(WeatherEntry.COLUMN_MAX_TEMP, 10.0 + 2 * i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        // Archived in two goes, the second one adding to the weeks and months of the first
+        Uri archiveUri = WeatherEntry.buildWeatherArchiveUri(10);
+        String pastSelection = WeatherEntry.COLUMN_DATE + " <= ?";
+        assertEquals(pastDays / 2, mContext.getContentResolver().delete(archiveUri,
+                pastSelection, new String[] {Long.toString(getDate(weatherValues, 9))}));
+        assertEquals(pastDays / 2, mContext.getContentResolver().delete(archiveUri,
+                pastSelection, new String[] {Long.toString(getDate(weatherValues, 19))}));
+        assertDates(WeatherEntry.buildWeatherLocation(location), weatherValues, 20, 21);
+
+        // Only the last ten days are kept day by day
+        Cursor cursor = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocation(location), null, null, null, null);
+        assertEquals("Error: the archive didn't keep the days within its retention",
+                10, cursor.getCount());
+        for (int i = 10; i < pastDays; i++) {
+            assertTrue(cursor.moveToNext());
+            TestUtilities.validateCurrentRecord("Error: day " + i + " wasn't archived",
+                    cursor, weatherValues[i]);
+        }
+        cursor.close();
+        cursor = mContext.getContentResolver().query(ArchiveEntry.buildArchiveLocationWithDateRange(
+                location, getDate(weatherValues, 15), getDate(weatherValues, 17)),
+                null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+
+        // Every past day is rolled up, once, even when archived again
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[] {weatherValues[19]});
+        assertEquals(1, mContext.getContentResolver().delete(archiveUri, pastSelection,
+                new String[] {Long.toString(getDate(weatherValues, 19))}));
+        assertWeeks(location, firstDay, pastDays);
+        cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocation(location, RollupEntry.PERIOD_MONTH),
+                new String[] {RollupEntry.COLUMN_START_DAY, RollupEntry.COLUMN_DAY_COUNT},
+                null, null, null);
+        int days = 0;
+        while (cursor.moveToNext()) {
+            Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            start.setTimeInMillis(cursor.getInt(0) * DateUtils.DAY_IN_MILLIS);
+            assertEquals("Error: a month doesn't start on the 1st",
+                    1, start.get(Calendar.DAY_OF_MONTH));
+            days += cursor.getInt(1);
+        }
+        assertEquals("Error: the months don't add up to the days archived", pastDays, days);
+        cursor.close();
+    }
+
+    /**
+     * Checks the weekly rollups against the days inserted by testArchiveWeather().
+     */
+    private void assertWeeks(String location, int firstDay, int pastDays) {
+        // First day of each week, and the count, lowest, highest and sums of its days
+        TreeMap<Integer, double[]> weeks = new TreeMap<Integer, double[]>();
+        for (int i = 0; i < pastDays; i++) {
+            int day = firstDay + i;
+            // Mondays, epoch day 0 was a Thursday
+            int weekStart = day - (day + 3) % 7;
+            double[] week = weeks.get(weekStart);
+            if (week == null) {
+                week = new double[] {0, Double.MAX_VALUE, -Double.MAX_VALUE, 0, 0};
+                weeks.put(weekStart, week);
+            }
+            week[0]++;
+            week[1] = Math.min(week[1], i);
+            week[2] = Math.max(week[2], 10 + 2 * i);
+            week[3] += i;
+            week[4] += 10 + 2 * i;
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupLocation(location, RollupEntry.PERIOD_WEEK),
+                new String[] {RollupEntry.COLUMN_START_DAY, RollupEntry.COLUMN_DAY_COUNT,
+                        RollupEntry.COLUMN_MIN_TEMP, RollupEntry.COLUMN_MAX_TEMP,
+                        RollupEntry.COLUMN_AVG_MIN_TEMP, RollupEntry.COLUMN_AVG_MAX_TEMP},
+                null, null, null);
+        try {
+            assertEquals("Error: wrong number of weeks", weeks.size(), cursor.getCount());
+            for (Map.Entry<Integer, double[]> week : weeks.entrySet()) {
+                assertTrue(cursor.moveToNext());
+                double[] expected = week.getValue();
+                assertEquals((int) week.getKey(), cursor.getInt(0));
+                assertEquals("Error: wrong number of days in a week",
+                        (int) expected[0], cursor.getInt(1));
+                assertEquals(expected[1], cursor.getDouble(2), 1e-9);
+                assertEquals(expected[2], cursor.getDouble(3), 1e-9);
+                assertEquals(expected[3] / expected[0], cursor.getDouble(4), 1e-9);
+                assertEquals(expected[4] / expected[0], cursor.getDouble(5), 1e-9);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testQueryCache() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                weatherValues[1].getAsLong(WeatherEntry.COLUMN_DATE));
+
+        Bundle before = getQueryCacheStats();
+        assertTrue("Error: the query cache isn't enabled",
+                before.getBoolean(WeatherContract.EXTRA_CACHE_ENABLED));
+        Cursor cursor = mContext.getContentResolver().query(dayUri, null, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error validating the queried day",
+                cursor, weatherValues[1]);
+        cursor = mContext.getContentResolver().query(dayUri, null, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error validating the cached day",
+                cursor, weatherValues[1]);
+        Bundle after = getQueryCacheStats();
+        assertEquals(before.getLong(WeatherContract.EXTRA_CACHE_MISSES) + 1,
+                after.getLong(WeatherContract.EXTRA_CACHE_MISSES));
+        assertEquals(before.getLong(WeatherContract.EXTRA_CACHE_HITS) + 1,
+                after.getLong(WeatherContract.EXTRA_CACHE_HITS));
+
+        // Writing weather drops the cached day
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[] {weatherValues[1].getAsString(WeatherEntry.COLUMN_DATE)});
+        weatherValues[1].put(WeatherEntry.COLUMN_MAX_TEMP, 100);
+        cursor = mContext.getContentResolver().query(dayUri, null, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error: a stale day was served",
+                cursor, weatherValues[1]);
+    }
+
+    public void testQueryCacheKeptByValidators() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] projection = {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME};
+        mContext.getContentResolver().query(locationUri, projection, null, null, null).close();
+
+        // Saving validators the way the sync adapter does keeps the cached forecast
+        ContentValues validators = new ContentValues();
+        validators.put(LocationEntry.COLUMN_ETAG, "\"etag\"");
+        validators.put(LocationEntry.COLUMN_VALIDATED_DAY,
+                WeatherContract.getEpochDay(System.currentTimeMillis()));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValues(validators)
+                .withSelection(LocationEntry._ID + " = ?",
+                        new String[] {Long.toString(locationRowId)})
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, validators, null, null);
+
+        Bundle before = getQueryCacheStats();
+        mContext.getContentResolver().query(locationUri, projection, null, null, null).close();
+        Bundle after = getQueryCacheStats();
+        assertEquals("Error: saving validators dropped the cached forecast",
+                before.getLong(WeatherContract.EXTRA_CACHE_HITS) + 1,
+                after.getLong(WeatherContract.EXTRA_CACHE_HITS));
+
+        // Renaming the city drops it
+        ContentValues city = new ContentValues();
+        city.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, city, null, null);
+        Cursor cursor = mContext.getContentResolver().query(
+                locationUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: a stale city name was served", "Santa's Village",
+                cursor.getString(1));
+        cursor.close();
+    }
+
+    public void testQueryCacheConcurrentWrites() throws InterruptedException {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        final ContentValues[] weatherValues = createNormalizedWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+        final Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                weatherValues[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        final int writes = 200;
+
+        // Readers keep filling the cache while the writer changes the day
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        mContext.getContentResolver().query(dayUri, null, null, null, null)
+                                .close();
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        ContentValues update = new ContentValues();
+        for (int write = 1; write <= writes; write++) {
+            update.put(WeatherEntry.COLUMN_MAX_TEMP, write);
+            mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                    WeatherEntry.COLUMN_DATE + " = ?",
+                    new String[] {weatherValues[0].getAsString(WeatherEntry.COLUMN_DATE)});
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(dayUri,
+                new String[] {WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: a result read before the last write was served",
+                (double) writes, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    private static ContentValues[] createNormalizedWeatherValues(long locationRowId) {
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(locationRowId);
+        for (ContentValues values : weatherValues) {
+            values.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    values.getAsLong(WeatherEntry.COLUMN_DATE)));
+        }
+        return weatherValues;
+    }
+
+    private Bundle getQueryCacheStats() {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+    }
+
+    public void testGetOrInsertLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri insertedUri = mContext.getContentResolver().insert(
+                LocationEntry.buildLocationGetOrInsertUri(), testValues);
+        long locationRowId = ContentUris.parseId(insertedUri);
+        assertTrue(locationRowId != -1);
+
+        LocationCache.Entry cached = LocationCache.get(TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: the inserted location wasn't cached", cached);
+        assertEquals(locationRowId, cached.getId());
+        assertEquals(testValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT), cached.getLat());
+
+        // Adding it again finds the stored row instead of failing on the unique setting
+        Uri foundUri = mContext.getContentResolver().insert(
+                LocationEntry.buildLocationGetOrInsertUri(), testValues);
+        assertEquals(locationRowId, ContentUris.parseId(foundUri));
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: the location was inserted twice", 1, cursor.getCount());
+        cursor.close();
+
+        // Saving validators keeps the cache, deleting locations drops it
+        ContentValues validators = new ContentValues();
+        validators.put(LocationEntry.COLUMN_ETAG, "\"etag\"");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, validators, null, null);
+        assertNotNull(LocationCache.get(TestUtilities.TEST_LOCATION));
+
+        deleteAllRecordsFromProvider();
+        assertNull("Error: a deleted location is still cached",
+                LocationCache.get(TestUtilities.TEST_LOCATION));
+    }
+
+    private static ArrayList<ContentProviderOperation> buildStoreOperations(int expectedLocations) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(
+                LocationEntry.buildLocationGetOrInsertUri())
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withExpectedCount(expectedLocations)
+                .build());
+        return operations;
+    }
+
+    public void testApplyBatch() throws Exception {
+        // A failing operation rolls the whole batch back, without notifying anyone
+        TestUtilities.TestContentObserver rolledBackObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, rolledBackObserver);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    buildStoreOperations(2));
+            fail("Error: the assertion should have failed the batch");
+        } catch (OperationApplicationException expected) {
+        }
+        mContext.getContentResolver().unregisterContentObserver(rolledBackObserver);
+        rolledBackObserver.mHT.quit();
+        assertFalse("Error: a rolled back batch was notified", rolledBackObserver.mContentChanged);
+        assertEquals(0, getWeatherIds().length);
+        assertNull("Error: a rolled back location is still cached",
+                LocationCache.get(TestUtilities.TEST_LOCATION));
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.CONTENT_URI, true, weatherObserver);
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, buildStoreOperations(1));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.mHT.quit();
+
+        // The first day was pruned in the same batch
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, getWeatherIds().length);
+        assertEquals(1, results[BULK_INSERT_RECORDS_TO_INSERT + 1].count.intValue());
+        for (int i = 1; i <= BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertEquals(WeatherEntry.UPSERT_INSERTED,
+                    WeatherEntry.getUpsertOutcomeFromUri(results[i].uri));
+        }
+
+        // Storing the same forecast again only reports unchanged rows
+        results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, buildStoreOperations(1));
+        for (int i = 2; i <= BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertEquals(WeatherEntry.UPSERT_UNCHANGED,
+                    WeatherEntry.getUpsertOutcomeFromUri(results[i].uri));
+        }
+    }
 }
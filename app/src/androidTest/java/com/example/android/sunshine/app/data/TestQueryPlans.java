@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the statements WeatherProvider and the sync adapter run for each
+    URI, and fails when one of them scans a whole table or sorts its rows in a temporary B-tree,
+    which is fine with a few rows but not once the tables grow.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+    private static final String DAY_SORT_ORDER = WeatherProvider.sDaySortOrder;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    // "weather/*", with and without a start date, sorted the way the loaders sort it, on the
+    // weather table alone and joined with the location table
+    public void testWeatherWithLocation() {
+        for (String tables : getWeatherTables()) {
+            assertIndexed(SQLiteQueryBuilder.buildQueryString(false, tables, null,
+                    WeatherProvider.sLocationIdSelection, null, null, DAY_SORT_ORDER, null));
+            assertIndexed(SQLiteQueryBuilder.buildQueryString(false, tables, null,
+                    WeatherProvider.sLocationIdSelection + WeatherProvider.sStartDayClause,
+                    null, null, DAY_SORT_ORDER, null));
+        }
+    }
+
+    // "weather/*" with a date range, and a page after a date
+    public void testWeatherWithLocationPaged() {
+        for (String tables : getWeatherTables()) {
+            assertIndexed(SQLiteQueryBuilder.buildQueryString(false, tables, null,
+                    WeatherProvider.sLocationIdSelection + WeatherProvider.sStartDayClause +
+                            WeatherProvider.sEndDayClause, null, null, DAY_SORT_ORDER, null));
+            assertIndexed(SQLiteQueryBuilder.buildQueryString(false, tables, null,
+                    WeatherProvider.sLocationIdSelection + WeatherProvider.sAfterDayClause,
+                    null, null, DAY_SORT_ORDER, "7,7"));
+        }
+    }
+
+    // "weather/*/#"
+    public void testWeatherWithLocationAndDate() {
+        for (String tables : getWeatherTables()) {
+            assertIndexed(SQLiteQueryBuilder.buildQueryString(false, tables, null,
+                    WeatherProvider.sLocationIdAndDaySelection, null, null, null, null));
+        }
+    }
+
+    // "weather": the upsert's lookup of a day and the prune of past days
+    public void testWeather() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME, null,
+                WeatherProvider.sLocationIdAndDaySelection, null, null, null, null));
+        assertIndexed("UPDATE " + WeatherEntry.TABLE_NAME + " SET " +
+                WeatherEntry.COLUMN_MAX_TEMP + " = ? WHERE " + WeatherEntry._ID + " = ?");
+        assertIndexed("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_DATE + " <= ?");
+    }
+
+    // "weather" with the archive parameter: finding the days already archived and moving the
+    // rest, and "archive/*" with a date range
+    public void testArchive() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, ArchiveEntry.TABLE_NAME, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_EPOCH_DAY +
+                        " = ?", null, null, null, null));
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, ArchiveEntry.TABLE_NAME, null,
+                WeatherProvider.sArchiveLocationIdSelection + WeatherProvider.sStartDayClause +
+                        WeatherProvider.sEndDayClause, null, null, DAY_SORT_ORDER, null));
+        assertIndexed("DELETE FROM " + ArchiveEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_EPOCH_DAY + " < ?");
+    }
+
+    // "rollup/*/*" with a date range, and the lookup of a period to add days to
+    public void testRollup() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, RollupEntry.TABLE_NAME, null,
+                WeatherProvider.sRollupLocationIdAndPeriodSelection +
+                        WeatherProvider.sRollupStartDayClause +
+                        WeatherProvider.sRollupEndDayClause, null, null,
+                WeatherProvider.sRollupSortOrder, null));
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, RollupEntry.TABLE_NAME, null,
+                WeatherProvider.sRollupLocationIdAndPeriodSelection + "AND " +
+                        RollupEntry.COLUMN_START_DAY + " = ?", null, null, null, null));
+    }
+
+    // "location": lookups by setting and by id
+    public void testLocation() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null, null, null, null));
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME, null,
+                LocationEntry._ID + " = ?", null, null, null, null));
+    }
+
+    // "sync_metrics": the delete its ring buffer trigger runs after every insert
+    public void testSyncMetrics() {
+        assertIndexed("DELETE FROM " + SyncMetricsEntry.TABLE_NAME + " WHERE " +
+                SyncMetricsEntry._ID + " <= ?");
+    }
+
+    private static String[] getWeatherTables() {
+        return new String[] {WeatherEntry.TABLE_NAME,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables()};
+    }
+
+    private void assertIndexed(String sql) {
+        List<String> plan = explain(sql);
+        assertFalse("Error: no query plan for " + sql, plan.isEmpty());
+        for (String step : plan) {
+            // Full scans read "SCAN TABLE weather" on older SQLite versions and "SCAN weather"
+            // on newer ones, with or without a covering index
+            assertFalse("Error: " + sql + " scans a whole table: " + plan,
+                    step.startsWith("SCAN "));
+            assertFalse("Error: " + sql + " sorts in a temporary B-tree: " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private List<String> explain(String sql) {
+        // Every parameter is NULL, which doesn't change the plan
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        List<String> plan = new ArrayList<String>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+}
@@ -36,6 +36,14 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/sync_metrics"
+    private static final Uri TEST_SYNC_METRICS_DIR = WeatherContract.SyncMetricsEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/archive"
+    private static final Uri TEST_ARCHIVE_DIR = WeatherContract.ArchiveEntry.CONTENT_URI;
+    private static final Uri TEST_ARCHIVE_WITH_LOCATION_DIR = WeatherContract.ArchiveEntry.buildArchiveLocation(LOCATION_QUERY);
+    // content://com.example.android.sunshine.app/rollup"
+    private static final Uri TEST_ROLLUP_DIR = WeatherContract.RollupEntry.CONTENT_URI;
+    private static final Uri TEST_ROLLUP_WITH_LOCATION_AND_PERIOD_DIR = WeatherContract.RollupEntry.buildRollupLocation(LOCATION_QUERY, WeatherContract.RollupEntry.PERIOD_WEEK);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +61,15 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC METRICS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_METRICS_DIR), WeatherProvider.SYNC_METRICS);
+        assertEquals("Error: The ARCHIVE URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_DIR), WeatherProvider.ARCHIVE);
+        assertEquals("Error: The ARCHIVE WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_WITH_LOCATION_DIR), WeatherProvider.ARCHIVE_WITH_LOCATION);
+        assertEquals("Error: The ROLLUP URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_DIR), WeatherProvider.ROLLUP);
+        assertEquals("Error: The ROLLUP WITH LOCATION AND PERIOD URI was matched incorrectly.",
+                testMatcher.match(TEST_ROLLUP_WITH_LOCATION_AND_PERIOD_DIR), WeatherProvider.ROLLUP_WITH_LOCATION_AND_PERIOD);
     }
 }
@@ -17,6 +17,10 @@ package com.example.android.sunshine.app.data;
 
 import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import java.util.Calendar;
+import java.util.TimeZone;
 
 /*
     Students: This is NOT a complete test for the WeatherContract --- just for the functions
@@ -42,4 +46,100 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    public void testBuildWeatherLocationPage() {
+        long date = WeatherContract.normalizeDate(TEST_WEATHER_DATE * 1000);
+        Uri rangeUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(
+                TEST_WEATHER_LOCATION, date, date + 6 * DateUtils.DAY_IN_MILLIS);
+        assertEquals(date, WeatherContract.WeatherEntry.getStartDateFromUri(rangeUri));
+        assertEquals(WeatherContract.normalizeDate(date + 6 * DateUtils.DAY_IN_MILLIS),
+                WeatherContract.WeatherEntry.getEndDateFromUri(rangeUri));
+        assertEquals(-1, WeatherContract.WeatherEntry.getLimitFromUri(rangeUri));
+
+        Uri pageUri = WeatherContract.WeatherEntry.buildWeatherLocationAfterDate(
+                TEST_WEATHER_LOCATION, date, 7);
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(pageUri));
+        assertEquals(date, WeatherContract.WeatherEntry.getAfterDateFromUri(pageUri));
+        assertEquals(7, WeatherContract.WeatherEntry.getLimitFromUri(pageUri));
+        assertEquals(0, WeatherContract.WeatherEntry.getOffsetFromUri(pageUri));
+        assertEquals(0, WeatherContract.WeatherEntry.getEndDateFromUri(pageUri));
+
+        Uri offsetUri = WeatherContract.WeatherEntry.withLimit(
+                WeatherContract.WeatherEntry.buildWeatherLocation(TEST_WEATHER_LOCATION), 7, 14);
+        assertEquals(7, WeatherContract.WeatherEntry.getLimitFromUri(offsetUri));
+        assertEquals(14, WeatherContract.WeatherEntry.getOffsetFromUri(offsetUri));
+    }
+
+    public void testDateNormalizer() {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        String[] timeZones = {"UTC", "America/Los_Angeles", "Europe/London", "Asia/Kolkata",
+                "Pacific/Auckland", "Pacific/Kiritimati"};
+        try {
+            for (String timeZone : timeZones) {
+                // normalizeDate() works in the default time zone
+                TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+                WeatherContract.onTimeZoneChanged();
+                DateNormalizer normalizer = new DateNormalizer();
+                // Every 7 hours over two years, which crosses every daylight saving change
+                long date = TEST_WEATHER_DATE * 1000;
+                for (int i = 0; i < 2 * 365 * 24 / 7; i++, date += 7 * DateUtils.HOUR_IN_MILLIS) {
+                    assertEquals("Error: " + timeZone + " normalized " + date + " differently",
+                            WeatherContract.normalizeDate(date), normalizer.normalize(date));
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+            WeatherContract.onTimeZoneChanged();
+        }
+    }
+
+    public void testEpochDays() {
+        // Zones that skip or repeat midnight, or are off by half or quarter hours
+        String[] timeZones = {"UTC", "America/Sao_Paulo", "America/Havana", "Asia/Beirut",
+                "Australia/Lord_Howe", "Pacific/Chatham", "America/St_Johns", "Europe/London",
+                "America/Los_Angeles", "Asia/Kolkata", "Pacific/Apia"};
+        int firstDay = WeatherContract.getEpochDay(946684800000L, TimeZone.getTimeZone("UTC"));
+        for (String id : timeZones) {
+            TimeZone timeZone = TimeZone.getTimeZone(id);
+            int previousDay = firstDay - 1;
+            for (int day = firstDay; day < firstDay + 30 * 365; day++) {
+                long start = WeatherContract.getDayStart(day, timeZone);
+                if (WeatherContract.getEpochDay(start, timeZone) != day
+                        && WeatherContract.getEpochDay(start - 1, timeZone) == previousDay) {
+                    // Skipped altogether, like December 30th, 2011 in Samoa
+                    continue;
+                }
+                assertEquals("Error: " + id + " doesn't start day " + day + " at " + start,
+                        day, WeatherContract.getEpochDay(start, timeZone));
+                assertEquals("Error: " + id + " doesn't end day " + previousDay + " at " + start,
+                        previousDay, WeatherContract.getEpochDay(start - 1, timeZone));
+                assertEquals("Error: " + id + " doesn't start day " + day + " at midnight",
+                        getMidnight(day, timeZone), start);
+                previousDay = day;
+            }
+        }
+    }
+
+    /**
+     * @return when the day starts, found with Calendar rather than arithmetic
+     */
+    private static long getMidnight(int epochDay, TimeZone timeZone) {
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(epochDay * DateUtils.DAY_IN_MILLIS);
+        Calendar local = Calendar.getInstance(timeZone);
+        local.clear();
+        local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH),
+                utc.get(Calendar.DAY_OF_MONTH));
+        long midnight = local.getTimeInMillis();
+        long earliest = midnight - 3 * DateUtils.HOUR_IN_MILLIS;
+        if (timeZone.getOffset(earliest) != timeZone.getOffset(midnight)) {
+            // A change skipped midnight or made it happen twice, and Calendar may have picked
+            // the wrong side of it.  The day starts with its first minute.
+            for (midnight = earliest; WeatherContract.getEpochDay(midnight, timeZone) != epochDay;
+                    midnight += DateUtils.MINUTE_IN_MILLIS) {
+            }
+        }
+        return midnight;
+    }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Readers keep running the weather/* query while a writer keeps replacing every location's
+    forecast, first with the rollback journal and then with write-ahead logging.  The reader
+    latency percentiles of both are logged under this class's name.
+ */
+@LargeTest
+public class TestWriteAheadLoggingStress extends AndroidTestCase {
+    private static final String LOG_TAG = TestWriteAheadLoggingStress.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "weather_stress.db";
+    private static final int READERS = 3;
+    private static final long DURATION_MILLIS = 5000;
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 14;
+    // Pause between two writes, so the writer doesn't hold the database all the time
+    private static final long WRITE_PAUSE_MILLIS = 5;
+
+    // The query behind weather/*, see WeatherProvider
+    private static final String WEATHER_BY_LOCATION_TABLES = WeatherEntry.TABLE_NAME +
+            " INNER JOIN " + LocationEntry.TABLE_NAME + " ON " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID;
+    private static final String WEATHER_BY_LOCATION_SELECTION = LocationEntry.TABLE_NAME + "." +
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " + WeatherEntry.COLUMN_EPOCH_DAY +
+            " >= ?";
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReaderLatency() throws Exception {
+        String rollbackJournal = describe(run(false));
+        String writeAheadLog = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ?
+                describe(run(true)) : "unavailable";
+        Log.i(LOG_TAG, "Reader latency with the rollback journal: " + rollbackJournal);
+        Log.i(LOG_TAG, "Reader latency with write-ahead logging: " + writeAheadLog);
+    }
+
+    /**
+     * @return the latency of every read, in microseconds, sorted
+     */
+    private long[] run(boolean writeAheadLogging) throws InterruptedException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        final WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, DATABASE_NAME,
+                writeAheadLogging, WeatherDbHelper.CheckpointPolicy.DEFAULT);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long[] locationIds = insertLocations(db);
+        writeForecasts(db, locationIds, 0);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                for (int round = 1; !stop.get(); round++) {
+                    writeForecasts(db, locationIds, round);
+                    dbHelper.onBatchCommitted(db);
+                    SystemClock.sleep(WRITE_PAUSE_MILLIS);
+                }
+            }
+        };
+
+        final long[][] latencies = new long[READERS][];
+        final int[] counts = new int[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            final int reader = i;
+            latencies[reader] = new long[1024];
+            readers[reader] = new Thread("reader " + reader) {
+                @Override
+                public void run() {
+                    String[] selectionArgs = {null,
+                            Integer.toString(WeatherContract.getEpochDay(getDate(0)))};
+                    for (int read = 0; !stop.get(); read++) {
+                        selectionArgs[0] = getLocationSetting(read % LOCATIONS);
+                        long start = System.nanoTime();
+                        Cursor cursor = query(db, selectionArgs);
+                        cursor.getCount();
+                        cursor.close();
+                        long latency = (System.nanoTime() - start) / 1000;
+
+                        if (counts[reader] == latencies[reader].length) {
+                            latencies[reader] = Arrays.copyOf(latencies[reader],
+                                    counts[reader] * 2);
+                        }
+                        latencies[reader][counts[reader]++] = latency;
+                    }
+                }
+            };
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(DURATION_MILLIS);
+        stop.set(true);
+        writer.join();
+        int total = 0;
+        for (int i = 0; i < READERS; i++) {
+            readers[i].join();
+            total += counts[i];
+        }
+        db.close();
+
+        assertTrue("Error: the readers didn't get to read at all", total > 0);
+        long[] allLatencies = new long[total];
+        for (int i = 0, offset = 0; i < READERS; offset += counts[i], i++) {
+            System.arraycopy(latencies[i], 0, allLatencies, offset, counts[i]);
+        }
+        Arrays.sort(allLatencies);
+        return allLatencies;
+    }
+
+    private static Cursor query(SQLiteDatabase db, String[] selectionArgs) {
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(WEATHER_BY_LOCATION_TABLES);
+        return queryBuilder.query(db, null, WEATHER_BY_LOCATION_SELECTION, selectionArgs,
+                null, null, WeatherEntry.COLUMN_EPOCH_DAY + " ASC");
+    }
+
+    private static String describe(long[] sortedLatencies) {
+        return sortedLatencies.length + " reads, p50 " + percentile(sortedLatencies, 50) +
+                "us, p90 " + percentile(sortedLatencies, 90) +
+                "us, p99 " + percentile(sortedLatencies, 99) +
+                "us, max " + sortedLatencies[sortedLatencies.length - 1] + "us";
+    }
+
+    private static long percentile(long[] sortedValues, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, index)];
+    }
+
+    private static String getLocationSetting(int location) {
+        return "stress" + location;
+    }
+
+    private static long getDate(int day) {
+        return WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE * 1000 + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private static long[] insertLocations(SQLiteDatabase db) {
+        long[] locationIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, getLocationSetting(i));
+            locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        }
+        return locationIds;
+    }
+
+    /**
+     * Replaces the forecast of every location in one transaction, like a sync does.
+     */
+    private static void writeForecasts(SQLiteDatabase db, long[] locationIds, int round) {
+        WeatherBatch batch = new WeatherBatch(locationIds.length * DAYS);
+        for (long locationId : locationIds) {
+            for (int day = 0; day < DAYS; day++) {
+                batch.add(locationId, getDate(day), 800, "Clear", 70 + round % 10,
+                        60 - round % 10, 50, 1000, 5, 180);
+            }
+        }
+        db.beginTransaction();
+        WeatherInserter inserter = new WeatherInserter(db);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                inserter.insert(batch, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+    }
+}
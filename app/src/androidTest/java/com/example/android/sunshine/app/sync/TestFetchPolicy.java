@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Runs the fetch policy against a local server that fails on demand.
+ */
+public class TestFetchPolicy extends AndroidTestCase {
+    private static final String API_KEY = "test-key";
+    private static final long BACKOFF_BASE_MILLIS = 200;
+
+    private LocalHttpServer mServer;
+    private String mBody;
+    // Number of requests to fail before answering properly
+    private volatile int mFailuresLeft;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBody = TestOwmForecastParser.readPayload(TestOwmForecastParser.PAYLOAD_14_DAYS);
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (mFailuresLeft > 0) {
+                    mFailuresLeft--;
+                    return new LocalHttpServer.Response(HttpURLConnection.HTTP_UNAVAILABLE, null);
+                }
+                return new LocalHttpServer.Response(HttpURLConnection.HTTP_OK, mBody);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private FetchPolicy.Attempt fetchAttempt() throws IOException {
+        final URL url = mServer.getUrl("/data/2.5/forecast/daily?q=94043");
+        return new FetchPolicy.Attempt() {
+            @Override
+            public ForecastFetcher.Result run() throws IOException, JSONException {
+                return ForecastFetcher.fetch(url, null, TestOwmForecastParser.NO_OP_CALLBACK);
+            }
+        };
+    }
+
+    public void testRetriesUntilSuccess() throws Exception {
+        FetchPolicy policy = new FetchPolicy(3, 10, 5, BACKOFF_BASE_MILLIS, 1000, 10, 10);
+        mFailuresLeft = 2;
+
+        ForecastFetcher.Result result = policy.execute(API_KEY, fetchAttempt());
+
+        assertEquals(HttpURLConnection.HTTP_OK, result.messageCode);
+        assertEquals("Error: expected two retries", 3, mServer.getRequests().size());
+        assertEquals(0, policy.getRetryDelayMillis());
+    }
+
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        FetchPolicy policy = new FetchPolicy(2, 10, 5, BACKOFF_BASE_MILLIS, 1000, 10, 10);
+        mFailuresLeft = 10;
+
+        try {
+            policy.execute(API_KEY, fetchAttempt());
+            fail("Error: the last failure should have been thrown");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof FetchPolicy.RejectedException);
+        }
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    public void testRefusedRetryKeepsFailure() throws Exception {
+        // One request right away, so the retry is rate limited
+        FetchPolicy policy = new FetchPolicy(3, 10, 5, BACKOFF_BASE_MILLIS, 1000, 1, 0.01);
+        mFailuresLeft = 10;
+
+        try {
+            policy.execute(API_KEY, fetchAttempt());
+            fail("Error: the server was unavailable");
+        } catch (IOException expected) {
+            assertFalse("Error: the failure was hidden by the refused retry",
+                    expected instanceof FetchPolicy.RejectedException);
+        }
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    public void testRetriesCountOnce() throws Exception {
+        // One forecast failing all its attempts is one failure, short of opening the circuit
+        FetchPolicy policy = new FetchPolicy(3, 10, 2, BACKOFF_BASE_MILLIS, 1000, 10, 10);
+        mFailuresLeft = 3;
+
+        try {
+            policy.execute(API_KEY, fetchAttempt());
+            fail("Error: the server was unavailable");
+        } catch (IOException expected) {
+        }
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals("Error: the retries opened the circuit", 0, policy.getRetryDelayMillis());
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        FetchPolicy policy = new FetchPolicy(1, 10, 2, BACKOFF_BASE_MILLIS, 1000, 10, 10);
+        mFailuresLeft = 2;
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                policy.execute(API_KEY, fetchAttempt());
+                fail("Error: the server was unavailable");
+            } catch (IOException expected) {
+            }
+        }
+        assertTrue("Error: the circuit should be open", policy.getRetryDelayMillis() > 0);
+
+        // While open, nothing reaches the server
+        try {
+            policy.execute(API_KEY, fetchAttempt());
+            fail("Error: the open circuit let a request through");
+        } catch (FetchPolicy.RejectedException expected) {
+            assertTrue(expected.retryAfterMillis > 0);
+        }
+        assertEquals(2, mServer.getRequests().size());
+
+        // Once the backoff is over, a trial request closes the circuit again
+        Thread.sleep(BACKOFF_BASE_MILLIS + 50);
+        ForecastFetcher.Result result = policy.execute(API_KEY, fetchAttempt());
+        assertEquals(HttpURLConnection.HTTP_OK, result.messageCode);
+        assertEquals(3, mServer.getRequests().size());
+        assertEquals(0, policy.getRetryDelayMillis());
+    }
+
+    public void testRateLimit() throws Exception {
+        // Two requests right away, then one every 100 seconds
+        FetchPolicy policy = new FetchPolicy(1, 10, 5, BACKOFF_BASE_MILLIS, 1000, 2, 0.01);
+
+        policy.execute(API_KEY, fetchAttempt());
+        policy.execute(API_KEY, fetchAttempt());
+        try {
+            policy.execute(API_KEY, fetchAttempt());
+            fail("Error: the third request should have been rate limited");
+        } catch (FetchPolicy.RejectedException expected) {
+            assertTrue(expected.retryAfterMillis > 0);
+        }
+        assertEquals(2, mServer.getRequests().size());
+
+        // Other keys have their own quota
+        policy.execute(API_KEY + "-other", fetchAttempt());
+        assertEquals(3, mServer.getRequests().size());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.LocalHttpServer;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Runs conditional forecast requests against a local stand-in for OpenWeatherMap.
+ */
+public class TestForecastFetcher extends AndroidTestCase {
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 24 Oct 2015 21:00:00 GMT";
+
+    private LocalHttpServer mServer;
+    private String mBody;
+    private boolean mHonorValidators;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBody = TestOwmForecastParser.readPayload(TestOwmForecastParser.PAYLOAD_14_DAYS);
+        mHonorValidators = true;
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (mHonorValidators && ETAG.equals(request.headers.get("if-none-match"))) {
+                    return new LocalHttpServer.Response(HttpURLConnection.HTTP_NOT_MODIFIED, null)
+                            .header("ETag", ETAG);
+                }
+                return new LocalHttpServer.Response(HttpURLConnection.HTTP_OK, mBody)
+                        .header("ETag", ETAG)
+                        .header("Last-Modified", LAST_MODIFIED);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private URL forecastUrl() throws Exception {
+        return mServer.getUrl("/data/2.5/forecast/daily?q=94043");
+    }
+
+    public void testUnconditionalFetch() throws Exception {
+        TestOwmForecastParser.RecordingCallback callback =
+                new TestOwmForecastParser.RecordingCallback();
+        ForecastFetcher.Result result = ForecastFetcher.fetch(forecastUrl(), null, callback);
+
+        assertEquals(HttpURLConnection.HTTP_OK, result.responseCode);
+        assertEquals(HttpURLConnection.HTTP_OK, result.messageCode);
+        assertFalse("Error: a first fetch can't be unchanged", result.unchanged);
+        assertEquals(15, callback.mEvents.size());
+        assertEquals(ETAG, result.validators.etag);
+        assertEquals(LAST_MODIFIED, result.validators.lastModified);
+        assertNotNull("Error: no body hash computed", result.validators.bodyHash);
+        assertNull(mServer.getRequests().get(0).headers.get("if-none-match"));
+    }
+
+    public void testNotModified() throws Exception {
+        ForecastFetcher.Result first = ForecastFetcher.fetch(forecastUrl(), null,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+
+        TestOwmForecastParser.RecordingCallback callback =
+                new TestOwmForecastParser.RecordingCallback();
+        ForecastFetcher.Result second =
+                ForecastFetcher.fetch(forecastUrl(), first.validators, callback);
+
+        LocalHttpServer.Request request = mServer.getRequests().get(1);
+        assertEquals(ETAG, request.headers.get("if-none-match"));
+        assertEquals(LAST_MODIFIED, request.headers.get("if-modified-since"));
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, second.responseCode);
+        assertTrue("Error: a 304 should be reported as unchanged", second.unchanged);
+        assertTrue("Error: nothing should be parsed on a 304", callback.mEvents.isEmpty());
+        assertSame(first.validators, second.validators);
+    }
+
+    public void testIdenticalBody() throws Exception {
+        // A server that ignores the validators but sends the same forecast again
+        mHonorValidators = false;
+        ForecastFetcher.Result first = ForecastFetcher.fetch(forecastUrl(), null,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+        ForecastFetcher.Result second = ForecastFetcher.fetch(forecastUrl(), first.validators,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+
+        assertEquals(HttpURLConnection.HTTP_OK, second.responseCode);
+        assertTrue("Error: an identical body should be reported as unchanged", second.unchanged);
+        assertFalse(second.validatorsChanged);
+    }
+
+    public void testIdenticalBodyNewEtag() throws Exception {
+        // The same forecast again, under an ETag the server rotated since
+        mHonorValidators = false;
+        ForecastFetcher.Result first = ForecastFetcher.fetch(forecastUrl(), null,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+        ForecastFetcher.Validators stale = new ForecastFetcher.Validators("\"stale\"",
+                first.validators.lastModified, first.validators.bodyHash);
+        ForecastFetcher.Result second = ForecastFetcher.fetch(forecastUrl(), stale,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+
+        assertTrue(second.unchanged);
+        assertTrue("Error: the new ETag wouldn't be saved", second.validatorsChanged);
+        assertEquals(ETAG, second.validators.etag);
+    }
+
+    public void testChangedBody() throws Exception {
+        mHonorValidators = false;
+        ForecastFetcher.Result first = ForecastFetcher.fetch(forecastUrl(), null,
+                TestOwmForecastParser.NO_OP_CALLBACK);
+
+        mBody = TestOwmForecastParser.readPayload(TestOwmForecastParser.PAYLOAD_16_DAYS);
+        TestOwmForecastParser.RecordingCallback callback =
+                new TestOwmForecastParser.RecordingCallback();
+        ForecastFetcher.Result second =
+                ForecastFetcher.fetch(forecastUrl(), first.validators, callback);
+
+        assertFalse("Error: a new forecast was reported as unchanged", second.unchanged);
+        assertEquals(17, callback.mEvents.size());
+        assertFalse(first.validators.bodyHash.equals(second.validators.bodyHash));
+    }
+}
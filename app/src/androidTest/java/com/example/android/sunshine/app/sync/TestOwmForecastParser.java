@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/*
+    Checks the streaming forecast parser against the original org.json based parser, using
+    responses recorded from OpenWeatherMap, and compares the cost of the two.
+ */
+public class TestOwmForecastParser extends AndroidTestCase {
+    public static final String LOG_TAG = TestOwmForecastParser.class.getSimpleName();
+
+    static final String PAYLOAD_14_DAYS = "owm_forecast_14_days.json";
+    static final String PAYLOAD_16_DAYS = "owm_forecast_16_days.json";
+
+    private static final int BENCHMARK_WARMUP = 20;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    /*
+        Records everything the parser reports so two parse runs can be compared.
+     */
+    static class RecordingCallback implements OwmForecastParser.Callback {
+        final ArrayList<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            mEvents.add("city " + cityName + " " + latitude + " " + longitude);
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            mEvents.add("day " + dayIndex + " " + pressure + " " + humidity + " " + windSpeed +
+                    " " + windDirection + " " + high + " " + low + " " + description + " " +
+                    weatherId);
+        }
+    }
+
+    /*
+        Callback that does no work, so the benchmark only measures the parsers.
+     */
+    static final OwmForecastParser.Callback NO_OP_CALLBACK = new OwmForecastParser.Callback() {
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+        }
+    };
+
+    static String readPayload(String name) throws IOException {
+        InputStream in = TestOwmForecastParser.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull("Error: recorded payload " + name + " is missing", in);
+        try {
+            return OwmForecastParser.readFully(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkParsersAgree(String payloadName, int expectedDays) throws Exception {
+        String payload = readPayload(payloadName);
+
+        RecordingCallback streaming = new RecordingCallback();
+        assertEquals(HttpURLConnection.HTTP_OK,
+                OwmForecastParser.parseStreaming(new StringReader(payload), streaming));
+
+        RecordingCallback tree = new RecordingCallback();
+        assertEquals(HttpURLConnection.HTTP_OK, OwmForecastParser.parseTree(payload, tree));
+
+        // One city plus one entry per day
+        assertEquals("Error: wrong number of days parsed from " + payloadName,
+                expectedDays + 1, streaming.mEvents.size());
+        assertEquals("Error: streaming parser disagrees with the tree parser for " + payloadName,
+                tree.mEvents, streaming.mEvents);
+    }
+
+    public void testStreamingMatchesTree14Days() throws Exception {
+        checkParsersAgree(PAYLOAD_14_DAYS, 14);
+    }
+
+    public void testStreamingMatchesTree16Days() throws Exception {
+        checkParsersAgree(PAYLOAD_16_DAYS, 16);
+    }
+
+    public void testErrorCode() throws Exception {
+        String payload = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                OwmForecastParser.parseStreaming(new StringReader(payload), NO_OP_CALLBACK));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                OwmForecastParser.parseTree(payload, NO_OP_CALLBACK));
+    }
+
+    public void testMalformedPayload() throws Exception {
+        String payload = "{\"cod\":\"200\",\"list\":[{\"pressure\":\"high\"}]}";
+        try {
+            OwmForecastParser.parseStreaming(new StringReader(payload), NO_OP_CALLBACK);
+            fail("Error: a malformed forecast should be reported as a JSONException");
+        } catch (JSONException expected) {
+        }
+    }
+
+    /*
+        The way the sync adapter read a response before the streaming parser: the whole body
+        into a StringBuffer a line at a time, then into an org.json tree.
+     */
+    static int readAndParseTree(InputStream inputStream) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        return OwmForecastParser.parseTree(buffer.toString(), NO_OP_CALLBACK);
+    }
+
+    /*
+        Times both ways of handling the recorded response as it comes off the connection, as a
+        byte stream, so the bytes per parse include reading the body.
+     */
+    private void benchmark(String payloadName) throws Exception {
+        byte[] payload = readPayload(payloadName).getBytes("UTF-8");
+
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            readAndParseTree(new ByteArrayInputStream(payload));
+            OwmForecastParser.parse(new ByteArrayInputStream(payload), NO_OP_CALLBACK);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            readAndParseTree(new ByteArrayInputStream(payload));
+        }
+        long treeNanos = System.nanoTime() - start;
+        long treeBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            OwmForecastParser.parse(new ByteArrayInputStream(payload), NO_OP_CALLBACK);
+        }
+        long streamingNanos = System.nanoTime() - start;
+        long streamingBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, payloadName + " (" + payload.length + "B): buffered tree " +
+                treeNanos / BENCHMARK_ITERATIONS / 1000 + "us " +
+                treeBytes / BENCHMARK_ITERATIONS + "B per parse, streaming " +
+                streamingNanos / BENCHMARK_ITERATIONS / 1000 + "us " +
+                streamingBytes / BENCHMARK_ITERATIONS + "B per parse");
+    }
+
+    public void testBenchmark14Days() throws Exception {
+        benchmark(PAYLOAD_14_DAYS);
+    }
+
+    public void testBenchmark16Days() throws Exception {
+        benchmark(PAYLOAD_16_DAYS);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+public class TestSyncScheduler extends AndroidTestCase {
+    private static final long JUST_NOW = 0;
+
+    public void testVolatilityScalesInterval() {
+        int stable = SyncScheduler.computeInterval(0, JUST_NOW, JUST_NOW, false);
+        int usual = SyncScheduler.computeInterval(1.25, JUST_NOW, JUST_NOW, false);
+        int volatile_ = SyncScheduler.computeInterval(5, JUST_NOW, JUST_NOW, false);
+
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL * 2, stable);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL * 5 / 4, usual);
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL / 2, volatile_);
+    }
+
+    public void testUnusedAppSyncsLessOften() {
+        long aWeekAndADay = 8 * DateUtils.DAY_IN_MILLIS;
+        int inUse = SyncScheduler.computeInterval(5, JUST_NOW, JUST_NOW, false);
+        int idle = SyncScheduler.computeInterval(5, JUST_NOW, aWeekAndADay, false);
+        int idleWithWidget = SyncScheduler.computeInterval(5, JUST_NOW, aWeekAndADay, true);
+
+        assertEquals(inUse * 3, idle);
+        assertEquals("Error: a widget on the home screen counts as use", inUse, idleWithWidget);
+    }
+
+    public void testBounds() {
+        // Stable and idle would be 18 hours
+        assertEquals(SyncScheduler.MAX_INTERVAL, SyncScheduler.computeInterval(
+                0, JUST_NOW, 30 * DateUtils.DAY_IN_MILLIS, false));
+
+        // A forecast about to go stale is refreshed as soon as allowed
+        long almostStale = SyncScheduler.STALE_AFTER_MILLIS - DateUtils.MINUTE_IN_MILLIS;
+        assertEquals(SyncScheduler.MIN_INTERVAL,
+                SyncScheduler.computeInterval(0, almostStale, JUST_NOW, false));
+
+        // A few hours from stale caps a long interval
+        long fourHoursFromStale = SyncScheduler.STALE_AFTER_MILLIS - 4 * DateUtils.HOUR_IN_MILLIS;
+        assertEquals(4 * 60 * 60,
+                SyncScheduler.computeInterval(0, fourHoursFromStale, JUST_NOW, false));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A very small HTTP/1.1 server bound to the loopback interface, standing in for
+ * OpenWeatherMap in tests.  Every request is answered by the {@link Handler}, which decides
+ * the status, headers and body, so tests can script 200s, 304s and failures.
+ */
+public class LocalHttpServer {
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Header names are lower case
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+    }
+
+    public static class Response {
+        final int mCode;
+        final String mBody;
+        final Map<String, String> mHeaders = new LinkedHashMap<String, String>();
+        boolean mDropConnection;
+
+        public Response(int code, String body) {
+            mCode = code;
+            mBody = body;
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * Closes the connection without sending anything, like a server that went away.
+         */
+        public static Response dropConnection() {
+            Response response = new Response(0, null);
+            response.mDropConnection = true;
+            return response;
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final Thread mThread;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalHttpServer");
+        mThread.start();
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /**
+     * @return every request received so far, oldest first.
+     */
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        try {
+            mThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown()
+                return;
+            }
+            try {
+                serve(socket);
+            } catch (IOException e) {
+                // The client went away, wait for the next one
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+        mRequests.add(request);
+        Response response = mHandler.handle(request);
+        if (response.mDropConnection) {
+            return;
+        }
+
+        byte[] body = response.mBody == null ? new byte[0] : response.mBody.getBytes("UTF-8");
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mCode).append(" Status\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            out.write(body);
+            out.flush();
+        } catch (SocketException e) {
+            // The client didn't wait for the answer
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The labels Utility gives days, "Today, June 24", "Tomorrow", "Wednesday" or "Mon Jun 3",
+ * formatted once per day and kept until today, the default locale or the time zone changes.
+ * The formatters are made once for the same span, and are only used while holding the labels'
+ * lock, since SimpleDateFormat isn't thread safe.
+ */
+class DayLabels {
+    // The kinds of label of a day, see the Utility methods of the same names
+    private static final int FRIENDLY = 0;
+    private static final int FRIENDLY_LONG_TODAY = 1;
+    private static final int FULL_FRIENDLY = 2;
+    private static final int DAY_NAME = 3;
+    private static final int MONTH_DAY = 4;
+    private static final int KINDS = 5;
+
+    // Past this many labels, the ones kept are dropped rather than growing the memo further
+    private static final int MAX_LABELS = 512;
+
+    /**
+     * The labels of one today, locale and time zone, by epoch day and kind.
+     */
+    private static final class Memo {
+        final int today;
+        final Locale locale;
+        final TimeZone timeZone;
+        final SparseArray<String> labels = new SparseArray<String>();
+
+        final SimpleDateFormat dayNameFormat;
+        final SimpleDateFormat monthDayFormat;
+        final SimpleDateFormat shortenedDateFormat;
+
+        Memo(int today, Locale locale, TimeZone timeZone) {
+            this.today = today;
+            this.locale = locale;
+            this.timeZone = timeZone;
+            dayNameFormat = createFormat("EEEE");
+            monthDayFormat = createFormat("MMMM dd");
+            shortenedDateFormat = createFormat("EEE MMM dd");
+        }
+
+        private SimpleDateFormat createFormat(String pattern) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+            format.setTimeZone(timeZone);
+            return format;
+        }
+    }
+
+    private static volatile Memo sMemo;
+
+    private DayLabels() {
+    }
+
+    static String getFriendlyDayString(Context context, long dateInMillis,
+                                       boolean displayLongToday) {
+        Memo memo = getMemo();
+        int day = WeatherContract.getEpochDay(dateInMillis);
+        boolean longToday = displayLongToday && day == memo.today;
+        return getLabel(context, memo, day, longToday ? FRIENDLY_LONG_TODAY : FRIENDLY);
+    }
+
+    static String getFullFriendlyDayString(Context context, long dateInMillis) {
+        Memo memo = getMemo();
+        return getLabel(context, memo, WeatherContract.getEpochDay(dateInMillis), FULL_FRIENDLY);
+    }
+
+    static String getDayName(Context context, long dateInMillis) {
+        Memo memo = getMemo();
+        return getLabel(context, memo, WeatherContract.getEpochDay(dateInMillis), DAY_NAME);
+    }
+
+    static String getFormattedMonthDay(Context context, long dateInMillis) {
+        Memo memo = getMemo();
+        return getLabel(context, memo, WeatherContract.getEpochDay(dateInMillis), MONTH_DAY);
+    }
+
+    /**
+     * @return the labels for now, new ones if today, the locale or the time zone changed since
+     * the last ones were made
+     */
+    private static Memo getMemo() {
+        int today = WeatherContract.getEpochDay(System.currentTimeMillis());
+        Locale locale = Locale.getDefault();
+        // The same instance until the time zone changes
+        TimeZone timeZone = WeatherContract.getTimeZone();
+        Memo memo = sMemo;
+        if (memo == null || memo.today != today || !memo.locale.equals(locale) ||
+                memo.timeZone != timeZone) {
+            memo = new Memo(today, locale, timeZone);
+            sMemo = memo;
+        }
+        return memo;
+    }
+
+    private static String getLabel(Context context, Memo memo, int day, int kind) {
+        int key = day * KINDS + kind;
+        synchronized (memo) {
+            String label = memo.labels.get(key);
+            if (label == null) {
+                label = formatLabel(context, memo, day, kind);
+                if (memo.labels.size() == MAX_LABELS) {
+                    memo.labels.clear();
+                }
+                memo.labels.put(key, label);
+            }
+            return label;
+        }
+    }
+
+    /**
+     * Formats a label, while holding the memo's lock.
+     */
+    private static String formatLabel(Context context, Memo memo, int day, int kind) {
+        long dayStart = WeatherContract.getDayStart(day);
+        switch (kind) {
+            case FRIENDLY_LONG_TODAY:
+                // "Today, June 8"
+                return context.getString(R.string.format_full_friendly_date,
+                        context.getString(R.string.today),
+                        getLabel(context, memo, day, MONTH_DAY));
+            case FRIENDLY:
+                // The day name for the coming week, "Mon Jun 8" after that
+                if (day < memo.today + 7) {
+                    return getLabel(context, memo, day, DAY_NAME);
+                }
+                return memo.shortenedDateFormat.format(dayStart);
+            case FULL_FRIENDLY:
+                return context.getString(R.string.format_full_friendly_date,
+                        getLabel(context, memo, day, DAY_NAME),
+                        getLabel(context, memo, day, MONTH_DAY));
+            case DAY_NAME:
+                if (day == memo.today) {
+                    return context.getString(R.string.today);
+                } else if (day == memo.today + 1) {
+                    return context.getString(R.string.tomorrow);
+                }
+                // Otherwise, the format is just the day of the week (e.g "Wednesday")
+                return memo.dayNameFormat.format(dayStart);
+            default:
+                return memo.monthDayFormat.format(dayStart);
+        }
+    }
+}
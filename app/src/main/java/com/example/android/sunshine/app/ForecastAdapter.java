@@ -17,6 +17,7 @@ package com.example.android.sunshine.app;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.view.ViewCompat;
@@ -30,11 +31,15 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.data.WeatherContract;
 
 /**
  * {@link ForecastAdapter} exposes a list of weather forecasts
  * from a {@link android.database.Cursor} to a {@link android.support.v7.widget.RecyclerView}.
+ *
+ * Rows are bound from {@link ForecastRows} that {@link ForecastLoader} formatted in the
+ * background, and new rows are compared with the ones shown on a background thread, so a sync
+ * that leaves most days as they were only rebinds the days that changed.  Items are identified
+ * by their date.
  */
 public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapterViewHolder> {
 
@@ -45,6 +50,9 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
     private boolean mUseTodayLayout = true;
 
     private Cursor mCursor;
+    // What the list shows, until a diff against the newer rows is done
+    private ForecastRows mRows = ForecastRows.EMPTY;
+    private DiffTask mDiffTask;
     final private Context mContext;
     final private ForecastAdapterOnClickHandler mClickHandler;
     final private View mEmptyView;
@@ -73,9 +81,11 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            int dateColumnIndex = mCursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
-            mClickHandler.onClick(mCursor.getLong(dateColumnIndex), this);
+            if (adapterPosition == RecyclerView.NO_POSITION) {
+                // Removed by a diff, on its way out
+                return;
+            }
+            mClickHandler.onClick(mRows.getDate(adapterPosition), this);
             mICM.onClick(this);
         }
     }
@@ -88,6 +98,8 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
         mContext = context;
         mClickHandler = dh;
         mEmptyView = emptyView;
+        // Before the ItemChoiceManager registers as an observer, which stable ids can't follow
+        setHasStableIds(true);
         mICM = new ItemChoiceManager(this);
         mICM.setChoiceMode(choiceMode);
     }
@@ -124,63 +136,53 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
 
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
-        mCursor.moveToPosition(position);
-        int weatherId = mCursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+        // Everything shown was formatted when the rows were loaded
+        ForecastRows rows = mRows;
         int defaultImage;
         boolean useLongToday;
 
         switch (getItemViewType(position)) {
             case VIEW_TYPE_TODAY:
-                defaultImage = Utility.getArtResourceForWeatherCondition(weatherId);
+                defaultImage = rows.getArtResource(position);
                 useLongToday = true;
                 break;
             default:
-                defaultImage = Utility.getIconResourceForWeatherCondition(weatherId);
+                defaultImage = rows.getIconResource(position);
                 useLongToday = false;
         }
 
-        if ( Utility.usingLocalGraphics(mContext) ) {
+        String artUrl = rows.getArtUrl(position);
+        if ( artUrl == null ) {
             forecastAdapterViewHolder.mIconView.setImageResource(defaultImage);
         } else {
             Glide.with(mContext)
-                    .load(Utility.getArtUrlForWeatherCondition(mContext, weatherId))
+                    .load(artUrl)
                     .error(defaultImage)
                     .crossFade()
                     .into(forecastAdapterViewHolder.mIconView);
         }
 
         // this enables better animations. even if we lose state due to a device rotation,
-        // the animator can use this to re-find the original view
-        ViewCompat.setTransitionName(forecastAdapterViewHolder.mIconView, "iconView" + position);
-
-        // Read date from cursor
-        long dateInMillis = mCursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+        // the animator can use this to re-find the original view.  It is named after the date,
+        // which stays with the view when a diff moves it to another position without a rebind.
+        ViewCompat.setTransitionName(forecastAdapterViewHolder.mIconView, "iconView" + rows.getDate(position));
 
         // Find TextView and set formatted date on it
-        forecastAdapterViewHolder.mDateView.setText(Utility.getFriendlyDayString(mContext, dateInMillis, useLongToday));
-
-        // Read weather forecast from cursor
-        String description = Utility.getStringForWeatherCondition(mContext, weatherId);
+        forecastAdapterViewHolder.mDateView.setText(rows.getDayName(position, useLongToday));
 
         // Find TextView and set weather forecast on it
-        forecastAdapterViewHolder.mDescriptionView.setText(description);
-        forecastAdapterViewHolder.mDescriptionView.setContentDescription(mContext.getString(R.string.a11y_forecast, description));
+        forecastAdapterViewHolder.mDescriptionView.setText(rows.getDescription(position));
+        forecastAdapterViewHolder.mDescriptionView.setContentDescription(rows.getDescriptionA11y(position));
 
         // For accessibility, we don't want a content description for the icon field
         // because the information is repeated in the description view and the icon
         // is not individually selectable
 
-        // Read high temperature from cursor
-        double high = mCursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP);
-        String highString = Utility.formatTemperature(mContext, high);
-        forecastAdapterViewHolder.mHighTempView.setText(highString);
-        forecastAdapterViewHolder.mHighTempView.setContentDescription(mContext.getString(R.string.a11y_high_temp, highString));
+        forecastAdapterViewHolder.mHighTempView.setText(rows.getHighString(position));
+        forecastAdapterViewHolder.mHighTempView.setContentDescription(rows.getHighA11y(position));
 
-        // Read low temperature from cursor
-        double low = mCursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP);
-        String lowString = Utility.formatTemperature(mContext, low);
-        forecastAdapterViewHolder.mLowTempView.setText(lowString);
-        forecastAdapterViewHolder.mLowTempView.setContentDescription(mContext.getString(R.string.a11y_low_temp, lowString));
+        forecastAdapterViewHolder.mLowTempView.setText(rows.getLowString(position));
+        forecastAdapterViewHolder.mLowTempView.setContentDescription(rows.getLowA11y(position));
 
         mICM.onBindViewHolder(forecastAdapterViewHolder, position);
     }
@@ -208,20 +210,104 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
 
     @Override
     public int getItemCount() {
-        if ( null == mCursor ) return 0;
-        return mCursor.getCount();
+        return mRows.size();
+    }
+
+    /**
+     * @return the date of the day, which stays the same across syncs, unlike the _id of a row
+     * the sync replaced
+     */
+    @Override
+    public long getItemId(int position) {
+        if (position < 0 || position >= mRows.size()) {
+            return RecyclerView.NO_ID;
+        }
+        return mRows.getDate(position);
     }
 
     public void swapCursor(Cursor newCursor) {
         mCursor = newCursor;
-        notifyDataSetChanged();
+        ForecastRows newRows;
+        if (newCursor instanceof ForecastLoader.ForecastCursor) {
+            newRows = ((ForecastLoader.ForecastCursor) newCursor).getRows();
+        } else {
+            // Not from a ForecastLoader, format the rows here
+            newRows = ForecastRows.fromCursor(mContext, newCursor);
+        }
+        if (mDiffTask != null) {
+            // Diffs against the rows shown, which the pending one never replaced
+            mDiffTask.cancel(false);
+            mDiffTask = null;
+        }
+
+        if (mRows.size() == 0 || newRows.size() == 0 || !mRows.isFormattedLike(newRows)) {
+            // Nothing to animate, or every row looks different anyway, "Today" is another day,
+            // or temperatures or icons changed with the settings
+            mRows = newRows;
+            notifyDataSetChanged();
+        } else {
+            mDiffTask = new DiffTask(mRows, newRows);
+            mDiffTask.execute();
+        }
         mEmptyView.setVisibility(getItemCount() == 0 ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * Compares the rows shown with newer ones in the background, then shows the newer ones and
+     * notifies the ranges that differ.
+     */
+    private class DiffTask extends AsyncTask<Void, Void, ForecastDiff> {
+        private final ForecastRows mOldRows;
+        private final ForecastRows mNewRows;
+
+        DiffTask(ForecastRows oldRows, ForecastRows newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        protected ForecastDiff doInBackground(Void... params) {
+            return ForecastDiff.compute(mOldRows, mNewRows);
+        }
+
+        @Override
+        protected void onPostExecute(ForecastDiff diff) {
+            if (mDiffTask != this) {
+                return;
+            }
+            mDiffTask = null;
+            mRows = mNewRows;
+            if (diff == null) {
+                notifyDataSetChanged();
+                return;
+            }
+            diff.dispatchTo(ForecastAdapter.this);
+            if (mUseTodayLayout && mOldRows.getDate(0) != mNewRows.getDate(0)) {
+                // Another day moved up into the today layout
+                notifyItemChanged(0);
+            }
+        }
+    }
+
     public Cursor getCursor() {
         return mCursor;
     }
 
+    /**
+     * @return the adapter position of the day, which may still be the one of the rows before
+     * the last swapCursor while their difference is worked out, or NO_POSITION if the day isn't
+     * shown
+     */
+    public int getPositionOfDate(long date) {
+        ForecastRows rows = mRows;
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.getDate(i) == date) {
+                return i;
+            }
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
     public void selectView(RecyclerView.ViewHolder viewHolder) {
         if ( viewHolder instanceof ForecastAdapterViewHolder ) {
             ForecastAdapterViewHolder vfh = (ForecastAdapterViewHolder)viewHolder;
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.Arrays;
+
+/**
+ * The days inserted, removed and changed between two versions of the forecast list, as the
+ * item range notifications that turn the one into the other.  Days are matched by date.  Both
+ * lists are sorted by date, so a single walk over both finds them all.
+ */
+class ForecastDiff {
+    static final int INSERT = 0;
+    static final int REMOVE = 1;
+    static final int CHANGE = 2;
+
+    // Type, position and count of each range, in the order they have to be notified in.
+    // Positions are in the list as it is once the ranges before have been applied.
+    private int[] mRanges = new int[3 * 4];
+    private int mRangeCount;
+
+    private ForecastDiff() {
+    }
+
+    /**
+     * @return the diff between the rows, or null if either isn't sorted by date, which only
+     * notifyDataSetChanged() can describe
+     */
+    static ForecastDiff compute(ForecastRows oldRows, ForecastRows newRows) {
+        if (!oldRows.isSortedByDate() || !newRows.isSortedByDate()) {
+            return null;
+        }
+
+        ForecastDiff diff = new ForecastDiff();
+        int oldPosition = 0;
+        int newPosition = 0;
+        while (oldPosition < oldRows.size() || newPosition < newRows.size()) {
+            if (newPosition == newRows.size() || (oldPosition < oldRows.size() &&
+                    oldRows.getDate(oldPosition) < newRows.getDate(newPosition))) {
+                // A day that is gone.  The days after it move up into its position.
+                diff.add(REMOVE, newPosition);
+                oldPosition++;
+            } else if (oldPosition == oldRows.size() ||
+                    newRows.getDate(newPosition) < oldRows.getDate(oldPosition)) {
+                diff.add(INSERT, newPosition);
+                newPosition++;
+            } else {
+                if (!oldRows.sameContents(oldPosition, newRows, newPosition)) {
+                    diff.add(CHANGE, newPosition);
+                }
+                oldPosition++;
+                newPosition++;
+            }
+        }
+        return diff;
+    }
+
+    private void add(int type, int position) {
+        if (mRangeCount > 0) {
+            int last = 3 * (mRangeCount - 1);
+            int lastPosition = mRanges[last + 1];
+            int lastCount = mRanges[last + 2];
+            // Removed days all leave from the same position, the others follow each other
+            if (mRanges[last] == type && (type == REMOVE ? lastPosition == position :
+                    lastPosition + lastCount == position)) {
+                mRanges[last + 2]++;
+                return;
+            }
+        }
+        if (3 * mRangeCount == mRanges.length) {
+            mRanges = Arrays.copyOf(mRanges, mRanges.length * 2);
+        }
+        mRanges[3 * mRangeCount] = type;
+        mRanges[3 * mRangeCount + 1] = position;
+        mRanges[3 * mRangeCount + 2] = 1;
+        mRangeCount++;
+    }
+
+    /**
+     * @return the number of item ranges, 0 if nothing changed
+     */
+    int getRangeCount() {
+        return mRangeCount;
+    }
+
+    int getType(int range) {
+        return mRanges[3 * range];
+    }
+
+    int getPosition(int range) {
+        return mRanges[3 * range + 1];
+    }
+
+    int getCount(int range) {
+        return mRanges[3 * range + 2];
+    }
+
+    /**
+     * Notifies the adapter of each range, once it shows the new rows.
+     */
+    void dispatchTo(RecyclerView.Adapter adapter) {
+        for (int range = 0; range < mRangeCount; range++) {
+            int position = getPosition(range);
+            int count = getCount(range);
+            switch (getType(range)) {
+                case INSERT:
+                    adapter.notifyItemRangeInserted(position, count);
+                    break;
+                case REMOVE:
+                    adapter.notifyItemRangeRemoved(position, count);
+                    break;
+                default:
+                    adapter.notifyItemRangeChanged(position, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * What the forecast list shows of each day, copied out of the cursor of ForecastFragment's
+ * loader and formatted the way the list shows it, the day names, descriptions, temperatures
+ * and their accessibility text, icons and art.  {@link ForecastLoader} builds them on its
+ * background thread, so binding a row only sets what is already there.
+ *
+ * Unlike the cursor, which the loader closes once it has a newer one, the rows can still be
+ * read while the list moves on to the next ones, and compared with them off the main thread.
+ */
+class ForecastRows {
+    static final ForecastRows EMPTY = new ForecastRows(0, 0, false, null);
+
+    // The day and the settings the rows were formatted for
+    private final int mDay;
+    private final boolean mMetric;
+    private final String mArtPack;
+
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final double[] mHighs;
+    private final double[] mLows;
+
+    private final String[] mDayNames;
+    // Same as the day names, but for today, which the today layout spells out with its date
+    private final String[] mLongDayNames;
+    private final String[] mDescriptions;
+    private final String[] mDescriptionA11y;
+    private final String[] mHighStrings;
+    private final String[] mHighA11y;
+    private final String[] mLowStrings;
+    private final String[] mLowA11y;
+    private final int[] mIconResources;
+    private final int[] mArtResources;
+    // null when the art comes with the app
+    private final String[] mArtUrls;
+
+    private ForecastRows(int size, int day, boolean metric, String artPack) {
+        mDay = day;
+        mMetric = metric;
+        mArtPack = artPack;
+        mDates = new long[size];
+        mWeatherIds = new int[size];
+        mHighs = new double[size];
+        mLows = new double[size];
+        mDayNames = new String[size];
+        mLongDayNames = new String[size];
+        mDescriptions = new String[size];
+        mDescriptionA11y = new String[size];
+        mHighStrings = new String[size];
+        mHighA11y = new String[size];
+        mLowStrings = new String[size];
+        mLowA11y = new String[size];
+        mIconResources = new int[size];
+        mArtResources = new int[size];
+        mArtUrls = new String[size];
+    }
+
+    /**
+     * Copies and formats the rows of a cursor over ForecastFragment's FORECAST_COLUMNS, with
+     * the current settings.  The cursor is left where it was.
+     */
+    static ForecastRows fromCursor(Context context, Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return EMPTY;
+        }
+        int position = cursor.getPosition();
+        ForecastRows rows = new ForecastRows(cursor.getCount(),
+                WeatherContract.getEpochDay(System.currentTimeMillis()),
+                Utility.isMetric(context), Utility.getArtPack(context));
+        boolean localGraphics = Utility.usingLocalGraphics(context);
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            long date = cursor.getLong(ForecastFragment.COL_WEATHER_DATE);
+            int weatherId = cursor.getInt(ForecastFragment.COL_WEATHER_CONDITION_ID);
+            double high = cursor.getDouble(ForecastFragment.COL_WEATHER_MAX_TEMP);
+            double low = cursor.getDouble(ForecastFragment.COL_WEATHER_MIN_TEMP);
+            rows.mDates[i] = date;
+            rows.mWeatherIds[i] = weatherId;
+            rows.mHighs[i] = high;
+            rows.mLows[i] = low;
+
+            rows.mDayNames[i] = Utility.getFriendlyDayString(context, date, false);
+            rows.mLongDayNames[i] = WeatherContract.getEpochDay(date) == rows.mDay ?
+                    Utility.getFriendlyDayString(context, date, true) : rows.mDayNames[i];
+            String description = Utility.getStringForWeatherCondition(context, weatherId);
+            rows.mDescriptions[i] = description;
+            rows.mDescriptionA11y[i] = context.getString(R.string.a11y_forecast, description);
+            String highString = Utility.formatTemperature(context, high);
+            rows.mHighStrings[i] = highString;
+            rows.mHighA11y[i] = context.getString(R.string.a11y_high_temp, highString);
+            String lowString = Utility.formatTemperature(context, low);
+            rows.mLowStrings[i] = lowString;
+            rows.mLowA11y[i] = context.getString(R.string.a11y_low_temp, lowString);
+            rows.mIconResources[i] = Utility.getIconResourceForWeatherCondition(weatherId);
+            rows.mArtResources[i] = Utility.getArtResourceForWeatherCondition(weatherId);
+            rows.mArtUrls[i] = localGraphics ? null :
+                    Utility.getArtUrlForWeatherCondition(context, weatherId);
+        }
+        cursor.moveToPosition(position);
+        return rows;
+    }
+
+    int size() {
+        return mDates.length;
+    }
+
+    long getDate(int position) {
+        return mDates[position];
+    }
+
+    int getWeatherId(int position) {
+        return mWeatherIds[position];
+    }
+
+    double getHigh(int position) {
+        return mHighs[position];
+    }
+
+    double getLow(int position) {
+        return mLows[position];
+    }
+
+    /**
+     * @param longToday whether today is spelled out with its date, like the today layout does
+     */
+    String getDayName(int position, boolean longToday) {
+        return longToday ? mLongDayNames[position] : mDayNames[position];
+    }
+
+    String getDescription(int position) {
+        return mDescriptions[position];
+    }
+
+    String getDescriptionA11y(int position) {
+        return mDescriptionA11y[position];
+    }
+
+    String getHighString(int position) {
+        return mHighStrings[position];
+    }
+
+    String getHighA11y(int position) {
+        return mHighA11y[position];
+    }
+
+    String getLowString(int position) {
+        return mLowStrings[position];
+    }
+
+    String getLowA11y(int position) {
+        return mLowA11y[position];
+    }
+
+    int getIconResource(int position) {
+        return mIconResources[position];
+    }
+
+    int getArtResource(int position) {
+        return mArtResources[position];
+    }
+
+    /**
+     * @return the url of the art of the chosen art pack, or null if the art comes with the app
+     */
+    String getArtUrl(int position) {
+        return mArtUrls[position];
+    }
+
+    /**
+     * @return true if each day comes after the one before it, which is how the loader sorts them
+     */
+    boolean isSortedByDate() {
+        for (int i = 1; i < mDates.length; i++) {
+            if (mDates[i] <= mDates[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the rows were formatted on the same day and with the same settings as the
+     * other rows, so days with the same weather look the same in both
+     */
+    boolean isFormattedLike(ForecastRows other) {
+        return mDay == other.mDay && mMetric == other.mMetric &&
+                (mArtPack == null ? other.mArtPack == null : mArtPack.equals(other.mArtPack));
+    }
+
+    /**
+     * @return true if the row shows the same as the row of the other rows, when both are
+     * formatted alike
+     */
+    boolean sameContents(int position, ForecastRows other, int otherPosition) {
+        return mDates[position] == other.mDates[otherPosition] &&
+                mWeatherIds[position] == other.mWeatherIds[otherPosition] &&
+                Double.compare(mHighs[position], other.mHighs[otherPosition]) == 0 &&
+                Double.compare(mLows[position], other.mLows[otherPosition]) == 0;
+    }
+}
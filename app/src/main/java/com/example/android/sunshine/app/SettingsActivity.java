@@ -17,7 +17,6 @@ package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.ListPreference;
@@ -38,7 +37,7 @@ import com.example.android.sunshine.app.wearable.WearableUpdateTask;
  * API Guide</a> for more information on developing a Settings UI.
  */
 public class SettingsActivity extends PreferenceActivity
-        implements Preference.OnPreferenceChangeListener, SharedPreferences.OnSharedPreferenceChangeListener {
+        implements Preference.OnPreferenceChangeListener, SettingsSnapshot.OnSettingsChangedListener {
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -51,21 +50,20 @@ public class SettingsActivity extends PreferenceActivity
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_art_pack_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_history_key)));
     }
 
-    // Registers a shared preference change listener that gets notified when preferences change
+    // Registers a settings listener that gets notified when settings change
     @Override
     protected void onResume() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        sp.registerOnSharedPreferenceChangeListener(this);
+        SettingsSnapshot.registerListener(this);
         super.onResume();
     }
 
-    // Unregisters a shared preference change listener
+    // Unregisters a settings listener
     @Override
     protected void onPause() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        sp.unregisterOnSharedPreferenceChangeListener(this);
+        SettingsSnapshot.unregisterListener(this);
         super.onPause();
     }
 
@@ -131,21 +129,24 @@ public class SettingsActivity extends PreferenceActivity
     // This gets called after the preference is changed, which is important because we
     // start our synchronization here
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if ( key.equals(getString(R.string.pref_location_key)) ) {
+    public void onSettingsChanged(SettingsSnapshot settings, @SettingsSnapshot.Changes int changes) {
+        if ( (changes & SettingsSnapshot.CHANGED_LOCATION) != 0 ) {
             // we've changed the location
             // first clear locationStatus
             Utility.resetLocationStatus(this);
             SunshineSyncAdapter.syncImmediately(this);
-        } else if ( key.equals(getString(R.string.pref_units_key)) ) {
+        }
+        if ( (changes & SettingsSnapshot.CHANGED_UNITS) != 0 ) {
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
             new WearableUpdateTask(getApplicationContext()).execute();
-        } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
+        }
+        if ( (changes & SettingsSnapshot.CHANGED_LOCATION_STATUS) != 0 ) {
             // our location status has changed.  Update the summary accordingly
             Preference locationPreference = findPreference(getString(R.string.pref_location_key));
             bindPreferenceSummaryToValue(locationPreference);
-        } else if ( key.equals(getString(R.string.pref_art_pack_key)) ) {
+        }
+        if ( (changes & SettingsSnapshot.CHANGED_ART_PACK) != 0 ) {
             // art pack have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
         }
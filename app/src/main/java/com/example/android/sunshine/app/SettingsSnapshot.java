@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The settings Sunshine reads while showing and syncing weather, read once from the
+ * SharedPreferences into an immutable snapshot.  A single preference listener replaces the
+ * snapshot whenever a preference changes, so reading a setting is reading a volatile field, and
+ * tells the listeners registered here which settings changed, on the main thread.
+ */
+public final class SettingsSnapshot {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(flag = true, value = {CHANGED_LOCATION, CHANGED_UNITS, CHANGED_ART_PACK,
+            CHANGED_HISTORY, CHANGED_LOCATION_STATUS})
+    public @interface Changes {}
+
+    public static final int CHANGED_LOCATION = 1;
+    public static final int CHANGED_UNITS = 1 << 1;
+    public static final int CHANGED_ART_PACK = 1 << 2;
+    public static final int CHANGED_HISTORY = 1 << 3;
+    // The status of the preferred location, which also changes with the location
+    public static final int CHANGED_LOCATION_STATUS = 1 << 4;
+
+    public interface OnSettingsChangedListener {
+        /**
+         * @param settings the settings as they are now
+         * @param changes the settings that changed, CHANGED_ flags
+         */
+        void onSettingsChanged(SettingsSnapshot settings, @Changes int changes);
+    }
+
+    private final String mLocationSetting;
+    private final boolean mMetric;
+    private final String mArtPack;
+    private final boolean mLocalGraphics;
+    private final int mHistoryDays;
+    private final @SunshineSyncAdapter.LocationStatus int mLocationStatus;
+
+    private static volatile SettingsSnapshot sSnapshot;
+    // The application context the snapshots are read with
+    private static Context sContext;
+    private static Handler sMainHandler;
+    private static final CopyOnWriteArrayList<OnSettingsChangedListener> sListeners =
+            new CopyOnWriteArrayList<OnSettingsChangedListener>();
+
+    // SharedPreferences only keeps weak references to its listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    refresh(sContext);
+                }
+            };
+
+    @SuppressWarnings("ResourceType")
+    private SettingsSnapshot(Context context, SharedPreferences prefs) {
+        mLocationSetting = prefs.getString(context.getString(R.string.pref_location_key),
+                context.getString(R.string.pref_location_default));
+        String metric = context.getString(R.string.pref_units_metric);
+        mMetric = prefs.getString(context.getString(R.string.pref_units_key), metric)
+                .equals(metric);
+        String sunshineArtPack = context.getString(R.string.pref_art_pack_sunshine);
+        mArtPack = prefs.getString(context.getString(R.string.pref_art_pack_key),
+                sunshineArtPack);
+        mLocalGraphics = mArtPack.equals(sunshineArtPack);
+        mHistoryDays = Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_history_key),
+                context.getString(R.string.pref_history_quarter)));
+        mLocationStatus = prefs.getInt(Utility.getLocationStatusKey(context, mLocationSetting),
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+    }
+
+    /**
+     * @return the current settings, read from the SharedPreferences the first time only
+     */
+    public static SettingsSnapshot get(Context context) {
+        SettingsSnapshot snapshot = sSnapshot;
+        if (snapshot == null) {
+            snapshot = init(context);
+        }
+        return snapshot;
+    }
+
+    private static synchronized SettingsSnapshot init(Context context) {
+        if (sSnapshot == null) {
+            Context applicationContext = context.getApplicationContext();
+            sContext = applicationContext != null ? applicationContext : context;
+            sMainHandler = new Handler(Looper.getMainLooper());
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(sContext);
+            prefs.registerOnSharedPreferenceChangeListener(sPreferenceListener);
+            sSnapshot = new SettingsSnapshot(sContext, prefs);
+        }
+        return sSnapshot;
+    }
+
+    /**
+     * Reads the settings again.  The preference listener does on its own, on the main thread;
+     * a thread that wrote the preferences and reads them back right away calls this first.
+     */
+    public static void refresh(Context context) {
+        SettingsSnapshot previous;
+        final SettingsSnapshot snapshot;
+        synchronized (SettingsSnapshot.class) {
+            previous = sSnapshot;
+            if (previous == null) {
+                init(context);
+                return;
+            }
+            snapshot = new SettingsSnapshot(sContext,
+                    PreferenceManager.getDefaultSharedPreferences(sContext));
+            sSnapshot = snapshot;
+        }
+
+        final int changes = previous.getChanges(snapshot);
+        if (changes == 0) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            dispatch(snapshot, changes);
+        } else {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(snapshot, changes);
+                }
+            });
+        }
+    }
+
+    private static void dispatch(SettingsSnapshot snapshot, @Changes int changes) {
+        for (OnSettingsChangedListener listener : sListeners) {
+            listener.onSettingsChanged(snapshot, changes);
+        }
+    }
+
+    public static void registerListener(OnSettingsChangedListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void unregisterListener(OnSettingsChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    private @Changes int getChanges(SettingsSnapshot snapshot) {
+        int changes = 0;
+        if (!mLocationSetting.equals(snapshot.mLocationSetting)) {
+            changes |= CHANGED_LOCATION;
+        }
+        if (mMetric != snapshot.mMetric) {
+            changes |= CHANGED_UNITS;
+        }
+        if (!mArtPack.equals(snapshot.mArtPack)) {
+            changes |= CHANGED_ART_PACK;
+        }
+        if (mHistoryDays != snapshot.mHistoryDays) {
+            changes |= CHANGED_HISTORY;
+        }
+        if (mLocationStatus != snapshot.mLocationStatus) {
+            changes |= CHANGED_LOCATION_STATUS;
+        }
+        return changes;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public boolean isMetric() {
+        return mMetric;
+    }
+
+    /**
+     * @return the art pack, the format of the art urls
+     */
+    public String getArtPack() {
+        return mArtPack;
+    }
+
+    public boolean usingLocalGraphics() {
+        return mLocalGraphics;
+    }
+
+    public int getHistoryDays() {
+        return mHistoryDays;
+    }
+
+    /**
+     * @return the status of the preferred location
+     */
+    public @SunshineSyncAdapter.LocationStatus int getLocationStatus() {
+        return mLocationStatus;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Everything Sunshine shows for an OpenWeatherMap condition code, its icon, art, art name,
+ * Muzei image and description, in a table with an entry for every code from 200 to 962, so
+ * that finding them is a single indexed read.  Descriptions are also cached once resolved, for
+ * the locale they were resolved in.
+ *
+ * Based on weather code data found at:
+ * http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+ */
+public class WeatherConditions {
+    static final int FIRST_CODE = 200;
+    static final int LAST_CODE = 962;
+
+    /**
+     * What is shown for a condition code.
+     */
+    static final class Condition {
+        // Kind of art, -1 if the code has no art
+        final int kind;
+        // -1 if the code has no art
+        final int iconResource;
+        final int artResource;
+        final String imageUrl;
+        // 0 if the code has no description of its own
+        final int stringResource;
+
+        Condition(int kind, int iconResource, int artResource, String imageUrl,
+                  int stringResource) {
+            this.kind = kind;
+            this.iconResource = iconResource;
+            this.artResource = artResource;
+            this.imageUrl = imageUrl;
+            this.stringResource = stringResource;
+        }
+    }
+
+    // The kinds of art, indexes of the arrays below.  Art packs name their art like ART_NAMES.
+    private static final int STORM = 0;
+    private static final int LIGHT_RAIN = 1;
+    private static final int RAIN = 2;
+    private static final int SNOW = 3;
+    private static final int FOG = 4;
+    private static final int CLEAR = 5;
+    private static final int LIGHT_CLOUDS = 6;
+    private static final int CLOUDS = 7;
+
+    private static final int[] ICON_RESOURCES = {
+            R.drawable.ic_storm,
+            R.drawable.ic_light_rain,
+            R.drawable.ic_rain,
+            R.drawable.ic_snow,
+            R.drawable.ic_fog,
+            R.drawable.ic_clear,
+            R.drawable.ic_light_clouds,
+            R.drawable.ic_cloudy
+    };
+    private static final int[] ART_RESOURCES = {
+            R.drawable.art_storm,
+            R.drawable.art_light_rain,
+            R.drawable.art_rain,
+            R.drawable.art_snow,
+            R.drawable.art_fog,
+            R.drawable.art_clear,
+            R.drawable.art_light_clouds,
+            R.drawable.art_clouds
+    };
+    private static final String[] ART_NAMES = {
+            "storm",
+            "light_rain",
+            "rain",
+            "snow",
+            "fog",
+            "clear",
+            "light_clouds",
+            "clouds"
+    };
+    private static final String[] IMAGE_URLS = {
+            "http://upload.wikimedia.org/wikipedia/commons/2/28/Thunderstorm_in_Annemasse,_France.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/a/a0/Rain_on_leaf_504605006.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/6/6c/Rain-on-Thassos.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/b/b8/Fresh_snow.JPG",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e6/Westminster_fog_-_London_-_UK.jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/7/7e/A_few_trees_and_the_sun_(6009964513).jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/e/e7/Cloudy_Blue_Sky_(5031259890).jpg",
+            "http://upload.wikimedia.org/wikipedia/commons/5/54/Cloudy_hills_in_Elis,_Greece_2.jpg"
+    };
+    // Muzei shows dust rather than a storm for squalls
+    private static final String SQUALLS_IMAGE_URL =
+            "http://upload.wikimedia.org/wikipedia/commons/d/dc/Raised_dust_ahead_of_a_severe_thunderstorm_1.jpg";
+
+    // The conditions by code, from FIRST_CODE, null for the codes without art or description
+    private static final Condition[] TABLE = new Condition[LAST_CODE - FIRST_CODE + 1];
+
+    static {
+        int[] kinds = new int[TABLE.length];
+        Arrays.fill(kinds, -1);
+        // A code in more than one range gets the kind of the first one
+        setKind(kinds, 200, 232, STORM);
+        setKind(kinds, 300, 321, LIGHT_RAIN);
+        setKind(kinds, 500, 504, RAIN);
+        setKind(kinds, 511, 511, SNOW);
+        setKind(kinds, 520, 531, RAIN);
+        setKind(kinds, 600, 622, SNOW);
+        setKind(kinds, 701, 761, FOG);
+        setKind(kinds, 761, 761, STORM);
+        setKind(kinds, 781, 781, STORM);
+        setKind(kinds, 800, 800, CLEAR);
+        setKind(kinds, 801, 801, LIGHT_CLOUDS);
+        setKind(kinds, 802, 804, CLOUDS);
+
+        int[] strings = new int[TABLE.length];
+        for (int code = 200; code <= 232; code++) {
+            strings[code - FIRST_CODE] = R.string.condition_2xx;
+        }
+        for (int code = 300; code <= 321; code++) {
+            strings[code - FIRST_CODE] = R.string.condition_3xx;
+        }
+        setString(strings, 500, R.string.condition_500);
+        setString(strings, 501, R.string.condition_501);
+        setString(strings, 502, R.string.condition_502);
+        setString(strings, 503, R.string.condition_503);
+        setString(strings, 504, R.string.condition_504);
+        setString(strings, 511, R.string.condition_511);
+        setString(strings, 520, R.string.condition_520);
+        setString(strings, 531, R.string.condition_531);
+        setString(strings, 600, R.string.condition_600);
+        setString(strings, 601, R.string.condition_601);
+        setString(strings, 602, R.string.condition_602);
+        setString(strings, 611, R.string.condition_611);
+        setString(strings, 612, R.string.condition_612);
+        setString(strings, 615, R.string.condition_615);
+        setString(strings, 616, R.string.condition_616);
+        setString(strings, 620, R.string.condition_620);
+        setString(strings, 621, R.string.condition_621);
+        setString(strings, 622, R.string.condition_622);
+        setString(strings, 701, R.string.condition_701);
+        setString(strings, 711, R.string.condition_711);
+        setString(strings, 721, R.string.condition_721);
+        setString(strings, 731, R.string.condition_731);
+        setString(strings, 741, R.string.condition_741);
+        setString(strings, 751, R.string.condition_751);
+        setString(strings, 761, R.string.condition_761);
+        setString(strings, 762, R.string.condition_762);
+        setString(strings, 771, R.string.condition_771);
+        setString(strings, 781, R.string.condition_781);
+        setString(strings, 800, R.string.condition_800);
+        setString(strings, 801, R.string.condition_801);
+        setString(strings, 802, R.string.condition_802);
+        setString(strings, 803, R.string.condition_803);
+        setString(strings, 804, R.string.condition_804);
+        setString(strings, 900, R.string.condition_900);
+        setString(strings, 901, R.string.condition_901);
+        setString(strings, 902, R.string.condition_902);
+        setString(strings, 903, R.string.condition_903);
+        setString(strings, 904, R.string.condition_904);
+        setString(strings, 905, R.string.condition_905);
+        setString(strings, 906, R.string.condition_906);
+        setString(strings, 951, R.string.condition_951);
+        setString(strings, 952, R.string.condition_952);
+        setString(strings, 953, R.string.condition_953);
+        setString(strings, 954, R.string.condition_954);
+        setString(strings, 955, R.string.condition_955);
+        setString(strings, 956, R.string.condition_956);
+        setString(strings, 957, R.string.condition_957);
+        setString(strings, 958, R.string.condition_958);
+        setString(strings, 959, R.string.condition_959);
+        setString(strings, 960, R.string.condition_960);
+        setString(strings, 961, R.string.condition_961);
+        setString(strings, 962, R.string.condition_962);
+
+        for (int i = 0; i < TABLE.length; i++) {
+            int kind = kinds[i];
+            if (kind == -1 && strings[i] == 0) {
+                continue;
+            }
+            if (kind == -1) {
+                TABLE[i] = new Condition(-1, -1, -1, null, strings[i]);
+            } else {
+                String imageUrl = i + FIRST_CODE == 781 ? SQUALLS_IMAGE_URL : IMAGE_URLS[kind];
+                TABLE[i] = new Condition(kind, ICON_RESOURCES[kind], ART_RESOURCES[kind],
+                        imageUrl, strings[i]);
+            }
+        }
+    }
+
+    private static void setKind(int[] kinds, int firstCode, int lastCode, int kind) {
+        for (int code = firstCode; code <= lastCode; code++) {
+            if (kinds[code - FIRST_CODE] == -1) {
+                kinds[code - FIRST_CODE] = kind;
+            }
+        }
+    }
+
+    private static void setString(int[] strings, int code, int stringResource) {
+        strings[code - FIRST_CODE] = stringResource;
+    }
+
+    /**
+     * The descriptions resolved in a locale, by code from FIRST_CODE.  Threads that resolve the
+     * same description at the same time both store it, which does no harm.
+     */
+    private static final class LocaleStrings {
+        final Locale locale;
+        final String[] strings = new String[TABLE.length];
+
+        LocaleStrings(Locale locale) {
+            this.locale = locale;
+        }
+    }
+
+    private static volatile LocaleStrings sStrings;
+
+    /**
+     * The art urls of an art pack, by kind of art.
+     */
+    private static final class ArtPackUrls {
+        final String artPack;
+        final String[] urls = new String[ART_NAMES.length];
+
+        ArtPackUrls(String artPack) {
+            this.artPack = artPack;
+            for (int kind = 0; kind < ART_NAMES.length; kind++) {
+                urls[kind] = String.format(Locale.US, artPack, ART_NAMES[kind]);
+            }
+        }
+    }
+
+    private static volatile ArtPackUrls sArtPackUrls;
+
+    private WeatherConditions() {
+    }
+
+    /**
+     * @return what is shown for the code, or null if the code has neither art nor a description
+     */
+    static Condition getCondition(int weatherId) {
+        if (weatherId < FIRST_CODE || weatherId > LAST_CODE) {
+            return null;
+        }
+        return TABLE[weatherId - FIRST_CODE];
+    }
+
+    /**
+     * @return resource id of the icon of the code. -1 if the code has no art.
+     */
+    public static int getIconResource(int weatherId) {
+        Condition condition = getCondition(weatherId);
+        return condition == null ? -1 : condition.iconResource;
+    }
+
+    /**
+     * @return resource id of the art of the code. -1 if the code has no art.
+     */
+    public static int getArtResource(int weatherId) {
+        Condition condition = getCondition(weatherId);
+        return condition == null ? -1 : condition.artResource;
+    }
+
+    /**
+     * @param artPack format of the art urls of the art pack, see Utility.getArtPack()
+     * @return url of the art of the code in the art pack. null if the code has no art.
+     */
+    public static String getArtUrl(String artPack, int weatherId) {
+        Condition condition = getCondition(weatherId);
+        if (condition == null || condition.kind == -1) {
+            return null;
+        }
+        ArtPackUrls artPackUrls = sArtPackUrls;
+        if (artPackUrls == null || !artPackUrls.artPack.equals(artPack)) {
+            artPackUrls = new ArtPackUrls(artPack);
+            sArtPackUrls = artPackUrls;
+        }
+        return artPackUrls.urls[condition.kind];
+    }
+
+    /**
+     * @return url of the Muzei image of the code. null if the code has no art.
+     */
+    public static String getImageUrl(int weatherId) {
+        Condition condition = getCondition(weatherId);
+        return condition == null ? null : condition.imageUrl;
+    }
+
+    /**
+     * @return the description of the code in the context's locale
+     */
+    public static String getString(Context context, int weatherId) {
+        if (weatherId < FIRST_CODE || weatherId > LAST_CODE) {
+            return context.getString(R.string.condition_unknown, weatherId);
+        }
+        Locale locale = context.getResources().getConfiguration().locale;
+        LocaleStrings localeStrings = sStrings;
+        if (localeStrings == null || !localeStrings.locale.equals(locale)) {
+            localeStrings = new LocaleStrings(locale);
+            sStrings = localeStrings;
+        }
+
+        int index = weatherId - FIRST_CODE;
+        String string = localeStrings.strings[index];
+        if (string == null) {
+            Condition condition = TABLE[index];
+            if (condition == null || condition.stringResource == 0) {
+                string = context.getString(R.string.condition_unknown, weatherId);
+            } else {
+                string = context.getString(condition.stringResource);
+            }
+            localeStrings.strings[index] = string;
+        }
+        return string;
+    }
+}
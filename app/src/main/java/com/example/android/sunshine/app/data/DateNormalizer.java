@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Normalizes dates like {@link WeatherContract#normalizeDate}, to the start of their local day,
+ * and tells their epoch day.  The time zone is read once, so an instance is meant to last for
+ * one batch of writes.  Dates usually come in runs of the same day, so the last day is
+ * remembered.  Not thread safe.
+ */
+class DateNormalizer {
+    private final TimeZone mTimeZone;
+    // The last day normalized to and its start and end, empty to begin with
+    private int mDay = 0;
+    private long mDayStart = 0;
+    private long mDayEnd = 0;
+
+    DateNormalizer() {
+        this(WeatherContract.getTimeZone());
+    }
+
+    DateNormalizer(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    long normalize(long date) {
+        getEpochDay(date);
+        return mDayStart;
+    }
+
+    int getEpochDay(long date) {
+        if (date < mDayStart || date >= mDayEnd) {
+            mDay = WeatherContract.getEpochDay(date, mTimeZone);
+            mDayStart = WeatherContract.getDayStart(mDay, mTimeZone);
+            mDayEnd = WeatherContract.getDayStart(mDay + 1, mTimeZone);
+        }
+        return mDay;
+    }
+}
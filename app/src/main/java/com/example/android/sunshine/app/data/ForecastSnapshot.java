@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the forecast of one location, ordered by date, from today onwards unless
+ * fetched for other days.
+ *
+ * The sync builds one after storing new weather, with a single query, and publishes it so the
+ * widgets, the notification, Muzei and the wearable all read the same copy instead of each
+ * querying the provider.  The widgets, Muzei and the wearable fetch() just the days they show,
+ * which the provider answers from the published snapshot, or with a query of those days only
+ * when it is missing or is about another location, for instance after the process restarted.
+ * The provider drops the published snapshot whenever it writes weather.
+ */
+public class ForecastSnapshot {
+
+    static final String[] SNAPSHOT_COLUMNS = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+    // these indices must match the projection
+    static final int INDEX_ID = 0;
+    static final int INDEX_DATE = 1;
+    static final int INDEX_WEATHER_ID = 2;
+    static final int INDEX_SHORT_DESC = 3;
+    static final int INDEX_MAX_TEMP = 4;
+    static final int INDEX_MIN_TEMP = 5;
+    static final int INDEX_HUMIDITY = 6;
+    static final int INDEX_PRESSURE = 7;
+    static final int INDEX_WIND_SPEED = 8;
+    static final int INDEX_DEGREES = 9;
+
+    private static volatile ForecastSnapshot sPublished;
+    // Bumped by every invalidation, so that a load racing with a write doesn't publish
+    // what it read before the write.  Guarded by ForecastSnapshot.class
+    private static int sGeneration;
+
+    private final String mLocationSetting;
+    private final long[] mIds;
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final String[] mDescriptions;
+    private final double[] mHighs;
+    private final double[] mLows;
+    private final double[] mHumidities;
+    private final double[] mPressures;
+    private final double[] mWindSpeeds;
+    private final double[] mDegrees;
+
+    ForecastSnapshot(String locationSetting, long[] ids, long[] dates, int[] weatherIds,
+                     String[] descriptions, double[] highs, double[] lows, double[] humidities,
+                     double[] pressures, double[] windSpeeds, double[] degrees) {
+        mLocationSetting = locationSetting;
+        mIds = ids;
+        mDates = dates;
+        mWeatherIds = weatherIds;
+        mDescriptions = descriptions;
+        mHighs = highs;
+        mLows = lows;
+        mHumidities = humidities;
+        mPressures = pressures;
+        mWindSpeeds = windSpeeds;
+        mDegrees = degrees;
+    }
+
+    /**
+     * Copies the rows of a cursor over SNAPSHOT_COLUMNS.  The cursor is not closed.
+     */
+    static ForecastSnapshot fromCursor(String locationSetting, Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        long[] dates = new long[count];
+        int[] weatherIds = new int[count];
+        String[] descriptions = new String[count];
+        double[] highs = new double[count];
+        double[] lows = new double[count];
+        double[] humidities = new double[count];
+        double[] pressures = new double[count];
+        double[] windSpeeds = new double[count];
+        double[] degrees = new double[count];
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(INDEX_ID);
+            dates[i] = cursor.getLong(INDEX_DATE);
+            weatherIds[i] = cursor.getInt(INDEX_WEATHER_ID);
+            descriptions[i] = cursor.getString(INDEX_SHORT_DESC);
+            highs[i] = cursor.getDouble(INDEX_MAX_TEMP);
+            lows[i] = cursor.getDouble(INDEX_MIN_TEMP);
+            humidities[i] = cursor.getDouble(INDEX_HUMIDITY);
+            pressures[i] = cursor.getDouble(INDEX_PRESSURE);
+            windSpeeds[i] = cursor.getDouble(INDEX_WIND_SPEED);
+            degrees[i] = cursor.getDouble(INDEX_DEGREES);
+        }
+        return new ForecastSnapshot(locationSetting, ids, dates, weatherIds, descriptions, highs,
+                lows, humidities, pressures, windSpeeds, degrees);
+    }
+
+    /**
+     * Reads the forecast of the location from today onwards and publishes it.
+     * @return the snapshot, or null if the provider couldn't be queried
+     */
+    public static ForecastSnapshot load(Context context, String locationSetting) {
+        int generation;
+        synchronized (ForecastSnapshot.class) {
+            generation = sGeneration;
+        }
+        ForecastSnapshot snapshot =
+                query(context, locationSetting, System.currentTimeMillis(), -1);
+        if (snapshot != null) {
+            synchronized (ForecastSnapshot.class) {
+                if (generation == sGeneration) {
+                    sPublished = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reads at most limit days of the forecast of the location from the date on, without
+     * publishing them.  The provider answers through call() with one array per column, rather
+     * than with a cursor, and from the published snapshot when it holds those days.
+     * @param limit the most days to read, -1 for all of them
+     * @return the snapshot, or null if the provider couldn't be reached
+     */
+    public static ForecastSnapshot fetch(Context context, String locationSetting, long startDate,
+                                         int limit) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return query(context, locationSetting, startDate, limit);
+        }
+        return call(context, locationSetting, startDate, limit);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ForecastSnapshot call(Context context, String locationSetting, long startDate,
+                                         int limit) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_START_DATE, startDate);
+        extras.putInt(WeatherContract.EXTRA_LIMIT, limit);
+        Bundle forecast = context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_FORECAST, locationSetting, extras);
+        return forecast == null ? null : fromBundle(locationSetting, forecast);
+    }
+
+    private static ForecastSnapshot query(Context context, String locationSetting,
+                                          long startDate, int limit) {
+        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, startDate);
+        if (limit != -1) {
+            weatherForLocationUri =
+                    WeatherContract.WeatherEntry.withLimit(weatherForLocationUri, limit, 0);
+        }
+        Cursor cursor = context.getContentResolver().query(weatherForLocationUri,
+                SNAPSHOT_COLUMNS, null, null,
+                WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return fromCursor(locationSetting, cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return at most limit days of the published snapshot of the location, from the date on,
+     * or null if there is no published snapshot of the location or it starts after the date
+     */
+    static ForecastSnapshot getPublished(String locationSetting, long startDate, int limit) {
+        ForecastSnapshot snapshot = sPublished;
+        if (snapshot == null || !snapshot.mLocationSetting.equals(locationSetting) ||
+                snapshot.size() == 0 ||
+                snapshot.mDates[0] > WeatherContract.normalizeDate(startDate)) {
+            return null;
+        }
+        int from = snapshot.firstIndexOnOrAfter(startDate);
+        int to = limit == -1 ? snapshot.size() : Math.min(snapshot.size(), from + limit);
+        return snapshot.slice(from, to);
+    }
+
+    private ForecastSnapshot slice(int from, int to) {
+        if (from == 0 && to == size()) {
+            return this;
+        }
+        return new ForecastSnapshot(mLocationSetting, Arrays.copyOfRange(mIds, from, to),
+                Arrays.copyOfRange(mDates, from, to), Arrays.copyOfRange(mWeatherIds, from, to),
+                Arrays.copyOfRange(mDescriptions, from, to), Arrays.copyOfRange(mHighs, from, to),
+                Arrays.copyOfRange(mLows, from, to), Arrays.copyOfRange(mHumidities, from, to),
+                Arrays.copyOfRange(mPressures, from, to), Arrays.copyOfRange(mWindSpeeds, from, to),
+                Arrays.copyOfRange(mDegrees, from, to));
+    }
+
+    /**
+     * @return one array per column, keyed by column name, which is what
+     * {@link WeatherContract#METHOD_GET_FORECAST} answers with
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(WeatherContract.WeatherEntry._ID, mIds);
+        bundle.putLongArray(WeatherContract.WeatherEntry.COLUMN_DATE, mDates);
+        bundle.putIntArray(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds);
+        bundle.putStringArray(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, mDescriptions);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, mHighs);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, mLows);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, mHumidities);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_PRESSURE, mPressures);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_DEGREES, mDegrees);
+        return bundle;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a column is missing or the columns differ in length
+     */
+    static ForecastSnapshot fromBundle(String locationSetting, Bundle bundle) {
+        long[] ids = bundle.getLongArray(WeatherContract.WeatherEntry._ID);
+        long[] dates = bundle.getLongArray(WeatherContract.WeatherEntry.COLUMN_DATE);
+        int[] weatherIds = bundle.getIntArray(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        String[] descriptions =
+                bundle.getStringArray(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        double[] highs = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        double[] lows = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        double[] humidities = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_HUMIDITY);
+        double[] pressures = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+        double[] windSpeeds =
+                bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED);
+        double[] degrees = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_DEGREES);
+
+        if (ids == null || dates == null || weatherIds == null || descriptions == null ||
+                highs == null || lows == null || humidities == null || pressures == null ||
+                windSpeeds == null || degrees == null) {
+            throw new IllegalArgumentException("Forecasts need every column");
+        }
+        int size = dates.length;
+        if (ids.length != size || weatherIds.length != size || descriptions.length != size ||
+                highs.length != size || lows.length != size || humidities.length != size ||
+                pressures.length != size || windSpeeds.length != size || degrees.length != size) {
+            throw new IllegalArgumentException("Forecast columns differ in length");
+        }
+        return new ForecastSnapshot(locationSetting, ids, dates, weatherIds, descriptions, highs,
+                lows, humidities, pressures, windSpeeds, degrees);
+    }
+
+    /**
+     * @return the published snapshot if it is about the location, otherwise a freshly loaded
+     * one.  Null if the provider couldn't be queried.
+     */
+    public static ForecastSnapshot get(Context context, String locationSetting) {
+        ForecastSnapshot snapshot = sPublished;
+        if (snapshot != null && snapshot.mLocationSetting.equals(locationSetting)) {
+            return snapshot;
+        }
+        return load(context, locationSetting);
+    }
+
+    /**
+     * Drops the published snapshot, so that the next reader loads the current data.
+     */
+    static synchronized void invalidate() {
+        sGeneration++;
+        sPublished = null;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public int size() {
+        return mDates.length;
+    }
+
+    /**
+     * @return the index of the first day on or after the date, or size() if there is none.
+     * Snapshots published on an earlier day still hold that day.
+     */
+    public int firstIndexOnOrAfter(long date) {
+        long normalizedDate = WeatherContract.normalizeDate(date);
+        int index = 0;
+        while (index < mDates.length && mDates[index] < normalizedDate) {
+            index++;
+        }
+        return index;
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public long getDate(int index) {
+        return mDates[index];
+    }
+
+    public int getWeatherId(int index) {
+        return mWeatherIds[index];
+    }
+
+    public String getDescription(int index) {
+        return mDescriptions[index];
+    }
+
+    public double getHigh(int index) {
+        return mHighs[index];
+    }
+
+    public double getLow(int index) {
+        return mLows[index];
+    }
+
+    public double getHumidity(int index) {
+        return mHumidities[index];
+    }
+
+    public double getPressure(int index) {
+        return mPressures[index];
+    }
+
+    public double getWindSpeed(int index) {
+        return mWindSpeeds[index];
+    }
+
+    public double getDegrees(int index) {
+        return mDegrees[index];
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Process-wide cache of the stored locations, by location setting, so that the sync doesn't go
+ * through the provider for every location it stores weather for, and the provider doesn't look
+ * the location up for every weather query.
+ *
+ * Only the provider fills and invalidates it, as it is the one writing the location table.
+ * Looking a location up when it isn't cached is still done through the provider.
+ */
+public class LocationCache {
+
+    // A few locations are synced, and entries are small
+    private static final int MAX_ENTRIES = 32;
+
+    private static final LruCache<String, Entry> sEntries =
+            new LruCache<String, Entry>(MAX_ENTRIES);
+    // Bumped by every invalidation, so that a location read before a write isn't cached after
+    // it.  Guarded by LocationCache.class
+    private static int sGeneration;
+
+    /**
+     * A stored location.
+     */
+    public static class Entry {
+        private final long mId;
+        private final double mLat;
+        private final double mLon;
+
+        Entry(long id, double lat, double lon) {
+            mId = id;
+            mLat = lat;
+            mLon = lon;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public double getLat() {
+            return mLat;
+        }
+
+        public double getLon() {
+            return mLon;
+        }
+    }
+
+    private LocationCache() {
+    }
+
+    /**
+     * @return the stored location, or null if it isn't cached
+     */
+    public static Entry get(String locationSetting) {
+        return sEntries.get(locationSetting);
+    }
+
+    static void put(String locationSetting, long id, double lat, double lon) {
+        sEntries.put(locationSetting, new Entry(id, lat, lon));
+    }
+
+    /**
+     * To be read before looking up a location that is then put() with it.
+     */
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Caches a location read outside of a write, unless locations were invalidated since the
+     * generation was read.
+     */
+    static synchronized void put(String locationSetting, long id, double lat, double lon,
+            int generation) {
+        if (generation == sGeneration) {
+            put(locationSetting, id, lat, lon);
+        }
+    }
+
+    /**
+     * Forgets every location, for writes that may have changed which id a setting maps to.
+     */
+    static synchronized void invalidate() {
+        sGeneration++;
+        sEntries.evictAll();
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Results of the weather queries WeatherProvider answers most often, held in memory and served
+ * as cursors over the same immutable rows, instead of going to SQLite and filling a new
+ * CursorWindow every time.
+ *
+ * Results are dropped by location setting, or all at once when a write can't tell which
+ * locations it touched.  Every drop bumps a generation, and a result read before the drop isn't
+ * stored after it, so a query racing with a write can't bring back what the write replaced.
+ * Drops have to happen once the write is committed.
+ */
+class QueryCache {
+    private static final int MAX_RESULTS = 32;
+    // Bigger results aren't worth copying, they are served straight from SQLite
+    private static final int MAX_ROWS = 100;
+
+    private final LruCache<String, Result> mResults = new LruCache<String, Result>(MAX_RESULTS);
+    // Guarded by this
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Rows of one query, column by column as SQLite typed them.
+     */
+    private static class Result {
+        final String mLocationSetting;
+        final String[] mColumnNames;
+        // Row after row, each value a Long, Double, String, byte[] or null
+        final Object[] mValues;
+        final int mCount;
+
+        Result(String locationSetting, String[] columnNames, Object[] values, int count) {
+            mLocationSetting = locationSetting;
+            mColumnNames = columnNames;
+            mValues = values;
+            mCount = count;
+        }
+    }
+
+    static String buildKey(String uri, String[] projection, String sortOrder) {
+        // The URI carries the location setting and the dates, the provider ignores selections.
+        // Which days the dates fall on depends on the time zone.
+        return uri + '\n' + Arrays.toString(projection) + '\n' + sortOrder + '\n' +
+                WeatherContract.getTimeZone().getID();
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there is none
+     */
+    Cursor get(String key) {
+        Result result = mResults.get(key);
+        synchronized (this) {
+            if (result == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return new ResultCursor(result);
+    }
+
+    /**
+     * To be read before running a query whose result is then put().
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the rows of the cursor, unless something was dropped since the generation was read.
+     * @return a cursor over the rows, standing in for the cursor, which is closed.  Cursors
+     * with too many rows to cache are returned as they are.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, String locationSetting, int generation, Cursor cursor) {
+        int count = cursor.getCount();
+        if (count > MAX_ROWS) {
+            return cursor;
+        }
+
+        String[] columnNames = cursor.getColumnNames();
+        Object[] values = new Object[count * columnNames.length];
+        try {
+            cursor.moveToPosition(-1);
+            for (int i = 0; cursor.moveToNext(); ) {
+                for (int column = 0; column < columnNames.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i++] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[i++] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            values[i++] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values[i++] = cursor.getBlob(column);
+                            break;
+                        default:
+                            values[i++] = null;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(locationSetting, columnNames, values, count);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return new ResultCursor(result);
+    }
+
+    /**
+     * Drops the results about the location.
+     */
+    synchronized void invalidate(String locationSetting) {
+        mGeneration++;
+        for (Map.Entry<String, Result> entry : mResults.snapshot().entrySet()) {
+            if (entry.getValue().mLocationSetting.equals(locationSetting)) {
+                mResults.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops every result.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mResults.evictAll();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    int size() {
+        return mResults.size();
+    }
+
+    /**
+     * Reads a result the way a SQLite cursor would read the same rows, converting values the
+     * way CursorWindow does.
+     */
+    private static class ResultCursor extends AbstractCursor {
+        private final Result mResult;
+
+        ResultCursor(Result result) {
+            mResult = result;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mResult.mColumnNames.length) {
+                throw new IndexOutOfBoundsException("Column " + column + " out of bounds");
+            }
+            if (mPos < 0 || mPos >= mResult.mCount) {
+                throw new IndexOutOfBoundsException("Position " + mPos + " out of bounds");
+            }
+            return mResult.mValues[mPos * mResult.mColumnNames.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mResult.mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mResult.mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof String) {
+                return FIELD_TYPE_STRING;
+            }
+            return FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value instanceof Double) {
+                return formatDouble((Double) value);
+            } else if (value instanceof byte[]) {
+                throw new SQLiteException("Unable to convert BLOB to string");
+            }
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value instanceof String) {
+                return ((String) value).getBytes();
+            } else if (value instanceof Number) {
+                throw new SQLiteException("Unable to convert number to blob");
+            }
+            return (byte[]) value;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof String) {
+                return parseLong((String) value);
+            } else if (value instanceof byte[]) {
+                throw new SQLiteException("Unable to convert BLOB to long");
+            }
+            return 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof String) {
+                return parseDouble((String) value);
+            } else if (value instanceof byte[]) {
+                throw new SQLiteException("Unable to convert BLOB to double");
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+
+    /**
+     * Formats like the "%g" CursorWindow turns REAL values into strings with: six significant
+     * digits, no trailing zeros, and an exponent for the very small and the very large.
+     */
+    static String formatDouble(double value) {
+        if (Double.isNaN(value)) {
+            return "nan";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        } else if (value == 0) {
+            return (1 / value) < 0 ? "-0" : "0";
+        }
+
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(6));
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= 6) {
+            BigDecimal mantissa = rounded.movePointLeft(exponent);
+            return stripZeros(mantissa.toPlainString()) + (exponent < 0 ? "e-" : "e+") +
+                    (Math.abs(exponent) < 10 ? "0" : "") + Math.abs(exponent);
+        }
+        return stripZeros(rounded.toPlainString());
+    }
+
+    private static String stripZeros(String number) {
+        if (number.indexOf('.') == -1) {
+            return number;
+        }
+        int end = number.length();
+        while (number.charAt(end - 1) == '0') {
+            end--;
+        }
+        if (number.charAt(end - 1) == '.') {
+            end--;
+        }
+        return number.substring(0, end);
+    }
+
+    // Like strtoll() and strtod(), which CursorWindow uses: the leading number, or 0
+
+    private static long parseLong(String value) {
+        String trimmed = value.trim();
+        int end = 0;
+        if (end < trimmed.length() && (trimmed.charAt(end) == '-' || trimmed.charAt(end) == '+')) {
+            end++;
+        }
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(trimmed.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        String trimmed = value.trim();
+        for (int end = trimmed.length(); end > 0; end--) {
+            try {
+                return Double.parseDouble(trimmed.substring(0, end));
+            } catch (NumberFormatException e) {
+                // Try a shorter prefix
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Moves weather rows to the archive table instead of deleting them, adding their days to the
+ * weekly and monthly rollups of their location, and drops the archived days older than the
+ * retention.  The weather table only ever holds the days still to come, and the archive only
+ * the recent past, so both stay small however long the app runs; older history only lives on
+ * in the rollups, a few rows a month per location.
+ */
+class WeatherArchive {
+    // Columns copied from the weather table to the archive
+    private static final String COLUMNS = TextUtils.join(",", new String[]{
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_EPOCH_DAY,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    });
+
+    // Epoch day of the Monday starting the week of a day.  Epoch day 0 was a Thursday.
+    static final String WEEK_START_DAY = WeatherEntry.COLUMN_EPOCH_DAY + " - (" +
+            WeatherEntry.COLUMN_EPOCH_DAY + " + 3) % 7";
+    // Epoch day of the 1st of the month of a day.  Epoch days are local days, read as UTC dates
+    // they fall on the right calendar day, and 2440587.5 is the Julian day of the epoch.
+    static final String MONTH_START_DAY = "CAST(julianday(" + WeatherEntry.COLUMN_EPOCH_DAY +
+            " * 86400, 'unixepoch', 'start of month') - 2440587.5 AS INTEGER)";
+
+    // The rollup columns, and what they sum up of the days rolled up, in the same order.  The
+    // ones after the highest temperature are means.
+    private static final String[] ROLLUP_COLUMNS = {
+            RollupEntry.COLUMN_DAY_COUNT,
+            RollupEntry.COLUMN_MIN_TEMP,
+            RollupEntry.COLUMN_MAX_TEMP,
+            RollupEntry.COLUMN_AVG_MIN_TEMP,
+            RollupEntry.COLUMN_AVG_MAX_TEMP,
+            RollupEntry.COLUMN_AVG_HUMIDITY,
+            RollupEntry.COLUMN_AVG_PRESSURE,
+            RollupEntry.COLUMN_AVG_WIND_SPEED
+    };
+    private static final String[] AGGREGATES = {
+            "COUNT(*)",
+            "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + ")",
+            "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + ")",
+            "AVG(" + WeatherEntry.COLUMN_MIN_TEMP + ")",
+            "AVG(" + WeatherEntry.COLUMN_MAX_TEMP + ")",
+            "AVG(" + WeatherEntry.COLUMN_HUMIDITY + ")",
+            "AVG(" + WeatherEntry.COLUMN_PRESSURE + ")",
+            "AVG(" + WeatherEntry.COLUMN_WIND_SPEED + ")"
+    };
+    private static final int DAY_COUNT = 0;
+    private static final int MIN_TEMP = 1;
+    private static final int MAX_TEMP = 2;
+    // The location id and the first day of the period come before the aggregates
+    private static final int AGGREGATES_OFFSET = 2;
+
+    // Weather rows whose day isn't archived yet.  A day archived again, after a time zone
+    // change for instance, replaces its archived row but is only rolled up once.
+    private static final String NOT_ARCHIVED = " AND NOT EXISTS (SELECT 1 FROM " +
+            ArchiveEntry.TABLE_NAME + " a WHERE a." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " AND a." +
+            WeatherEntry.COLUMN_EPOCH_DAY + " = " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_EPOCH_DAY + ")";
+
+    private static final String ROLLUP_SELECTION = RollupEntry.COLUMN_LOC_KEY + " = ? AND " +
+            RollupEntry.COLUMN_PERIOD + " = ? AND " + RollupEntry.COLUMN_START_DAY + " = ?";
+
+    private WeatherArchive() {
+    }
+
+    /**
+     * Archives the weather rows matching the selection, rolls their days up and deletes them,
+     * then drops the archived days older than the retention, all in one transaction, nested in
+     * the caller's if there is one.
+     * @param retentionDays how many days before today to keep in the archive
+     * @return the number of weather rows deleted
+     */
+    static int archive(SQLiteDatabase db, String selection, String[] selectionArgs,
+                       int retentionDays) {
+        if (retentionDays < 0) {
+            throw new IllegalArgumentException("Bad retention: " + retentionDays);
+        }
+        if (selectionArgs == null) {
+            selectionArgs = new String[0];
+        }
+
+        int rowsDeleted;
+        db.beginTransaction();
+        try {
+            String newDays = "(" + selection + ")" + NOT_ARCHIVED;
+            rollUp(db, RollupEntry.PERIOD_WEEK, WEEK_START_DAY, newDays, selectionArgs);
+            rollUp(db, RollupEntry.PERIOD_MONTH, MONTH_START_DAY, newDays, selectionArgs);
+            db.execSQL("INSERT INTO " + ArchiveEntry.TABLE_NAME + " (" + COLUMNS + ") SELECT " +
+                    COLUMNS + " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + selection,
+                    selectionArgs);
+            rowsDeleted = db.delete(WeatherEntry.TABLE_NAME, selection, selectionArgs);
+
+            int oldestDay = WeatherContract.getEpochDay(System.currentTimeMillis()) -
+                    retentionDays;
+            db.delete(ArchiveEntry.TABLE_NAME, WeatherEntry.COLUMN_EPOCH_DAY + " < ?",
+                    new String[]{Integer.toString(oldestDay)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Adds the weather rows matching the selection to the rollups of their location and period.
+     * @param startDay expression of the first day of the period of a row
+     */
+    private static void rollUp(SQLiteDatabase db, String period, String startDay,
+                               String selection, String[] selectionArgs) {
+        String[] projection = new String[AGGREGATES_OFFSET + AGGREGATES.length];
+        projection[0] = WeatherEntry.COLUMN_LOC_KEY;
+        projection[1] = startDay;
+        System.arraycopy(AGGREGATES, 0, projection, AGGREGATES_OFFSET, AGGREGATES.length);
+
+        Cursor periods = db.query(WeatherEntry.TABLE_NAME, projection, selection, selectionArgs,
+                WeatherEntry.COLUMN_LOC_KEY + ", " + startDay, null, null);
+        ContentValues values = new ContentValues();
+        try {
+            while (periods.moveToNext()) {
+                long locationId = periods.getLong(0);
+                int periodStartDay = periods.getInt(1);
+                values.clear();
+                values.put(RollupEntry.COLUMN_LOC_KEY, locationId);
+                values.put(RollupEntry.COLUMN_PERIOD, period);
+                values.put(RollupEntry.COLUMN_START_DAY, periodStartDay);
+
+                Cursor stored = db.query(RollupEntry.TABLE_NAME, ROLLUP_COLUMNS,
+                        ROLLUP_SELECTION, new String[]{Long.toString(locationId), period,
+                                Integer.toString(periodStartDay)}, null, null, null);
+                try {
+                    if (stored.moveToFirst()) {
+                        merge(stored, periods, values);
+                    } else {
+                        values.put(ROLLUP_COLUMNS[DAY_COUNT], periods.getInt(AGGREGATES_OFFSET));
+                        for (int i = MIN_TEMP; i < ROLLUP_COLUMNS.length; i++) {
+                            values.put(ROLLUP_COLUMNS[i],
+                                    periods.getDouble(AGGREGATES_OFFSET + i));
+                        }
+                    }
+                } finally {
+                    stored.close();
+                }
+                // Replaces the stored rollup, if any
+                db.insert(RollupEntry.TABLE_NAME, null, values);
+            }
+        } finally {
+            periods.close();
+        }
+    }
+
+    /**
+     * Puts the stored rollup of a period, with the days just rolled up added, into the values.
+     */
+    private static void merge(Cursor stored, Cursor added, ContentValues values) {
+        int storedDays = stored.getInt(DAY_COUNT);
+        int addedDays = added.getInt(AGGREGATES_OFFSET + DAY_COUNT);
+        int days = storedDays + addedDays;
+        values.put(ROLLUP_COLUMNS[DAY_COUNT], days);
+        values.put(ROLLUP_COLUMNS[MIN_TEMP], Math.min(stored.getDouble(MIN_TEMP),
+                added.getDouble(AGGREGATES_OFFSET + MIN_TEMP)));
+        values.put(ROLLUP_COLUMNS[MAX_TEMP], Math.max(stored.getDouble(MAX_TEMP),
+                added.getDouble(AGGREGATES_OFFSET + MAX_TEMP)));
+        for (int i = MAX_TEMP + 1; i < ROLLUP_COLUMNS.length; i++) {
+            values.put(ROLLUP_COLUMNS[i], (stored.getDouble(i) * storedDays +
+                    added.getDouble(AGGREGATES_OFFSET + i) * addedDays) / days);
+        }
+    }
+}
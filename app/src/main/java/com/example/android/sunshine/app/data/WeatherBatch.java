@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * Weather rows to insert, held column by column in primitive arrays instead of one ContentValues
+ * per row.  Sent to the provider with {@link WeatherContract#METHOD_BULK_INSERT_WEATHER}, as a
+ * Bundle holding one array per column, keyed by column name.
+ */
+public class WeatherBatch {
+    private int mSize;
+    long[] mLocationIds;
+    long[] mDates;
+    int[] mWeatherIds;
+    String[] mDescriptions;
+    double[] mHighs;
+    double[] mLows;
+    double[] mHumidities;
+    double[] mPressures;
+    double[] mWindSpeeds;
+    double[] mDegrees;
+
+    public WeatherBatch(int capacity) {
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new String[capacity];
+        mHighs = new double[capacity];
+        mLows = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    public void add(long locationId, long date, int weatherId, String description, double high,
+                    double low, double humidity, double pressure, double windSpeed,
+                    double degrees) {
+        if (mSize == mDates.length) {
+            grow(Math.max(16, mSize * 2));
+        }
+        mLocationIds[mSize] = locationId;
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mDescriptions[mSize] = description;
+        mHighs[mSize] = high;
+        mLows[mSize] = low;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public Bundle toBundle() {
+        grow(mSize);
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationIds);
+        bundle.putLongArray(WeatherContract.WeatherEntry.COLUMN_DATE, mDates);
+        bundle.putIntArray(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds);
+        bundle.putStringArray(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, mDescriptions);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, mHighs);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, mLows);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, mHumidities);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_PRESSURE, mPressures);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds);
+        bundle.putDoubleArray(WeatherContract.WeatherEntry.COLUMN_DEGREES, mDegrees);
+        return bundle;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a column is missing or the columns differ in length
+     */
+    static WeatherBatch fromBundle(Bundle bundle) {
+        WeatherBatch batch = new WeatherBatch(0);
+        batch.mLocationIds = bundle.getLongArray(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        batch.mDates = bundle.getLongArray(WeatherContract.WeatherEntry.COLUMN_DATE);
+        batch.mWeatherIds = bundle.getIntArray(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        batch.mDescriptions = bundle.getStringArray(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        batch.mHighs = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        batch.mLows = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        batch.mHumidities = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_HUMIDITY);
+        batch.mPressures = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_PRESSURE);
+        batch.mWindSpeeds = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED);
+        batch.mDegrees = bundle.getDoubleArray(WeatherContract.WeatherEntry.COLUMN_DEGREES);
+
+        if (batch.mLocationIds == null || batch.mDates == null || batch.mWeatherIds == null ||
+                batch.mDescriptions == null || batch.mHighs == null || batch.mLows == null ||
+                batch.mHumidities == null || batch.mPressures == null ||
+                batch.mWindSpeeds == null || batch.mDegrees == null) {
+            throw new IllegalArgumentException("Weather batches need every column");
+        }
+        int size = batch.mDates.length;
+        if (batch.mLocationIds.length != size || batch.mWeatherIds.length != size ||
+                batch.mDescriptions.length != size || batch.mHighs.length != size ||
+                batch.mLows.length != size || batch.mHumidities.length != size ||
+                batch.mPressures.length != size || batch.mWindSpeeds.length != size ||
+                batch.mDegrees.length != size) {
+            throw new IllegalArgumentException("Weather batch columns differ in length");
+        }
+        batch.mSize = size;
+        return batch;
+    }
+
+    private void grow(int capacity) {
+        if (capacity == mDates.length) {
+            return;
+        }
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+        mHighs = Arrays.copyOf(mHighs, capacity);
+        mLows = Arrays.copyOf(mLows, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
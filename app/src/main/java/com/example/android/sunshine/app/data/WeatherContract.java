@@ -19,7 +19,10 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +46,113 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+    public static final String PATH_ARCHIVE = "archive";
+    public static final String PATH_ROLLUP = "rollup";
+
+    // Methods that can be invoked on the provider through ContentResolver.call()
+    // Upserts the weather rows passed as EXTRA_VALUES, answering with the EXTRA_*_COUNT values.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+    // Inserts the weather rows of a WeatherBatch, passed as the extras, answering with
+    // EXTRA_INSERTED_COUNT.
+    public static final String METHOD_BULK_INSERT_WEATHER = "bulk_insert_weather";
+    // Answers with the EXTRA_CACHE_* counters of the provider's query cache.
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "get_query_cache_stats";
+    // Answers with the forecast of the location setting passed as the arg, from EXTRA_START_DATE
+    // on, at most EXTRA_LIMIT days, as one primitive array per column keyed by column name: _id,
+    // date, weather_id, short_desc, min, max, humidity, pressure, wind and degrees.
+    public static final String METHOD_GET_FORECAST = "get_forecast";
+
+    // Bundle keys used by the methods above
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_INSERTED_COUNT = "inserted_count";
+    public static final String EXTRA_CHANGED_COUNT = "changed_count";
+    public static final String EXTRA_UNCHANGED_COUNT = "unchanged_count";
+    // long[] of the location ids that had at least one row inserted or changed
+    public static final String EXTRA_CHANGED_LOCATION_IDS = "changed_location_ids";
+    // How much the changed rows moved: the sum over the rows of the mean absolute change of
+    // their high and low temperatures (double), and the number of rows whose condition changed
+    public static final String EXTRA_TEMPERATURE_DELTA = "temperature_delta";
+    public static final String EXTRA_CONDITION_CHANGES = "condition_changes";
+    // Whether the query cache is enabled (boolean), how many queries it answered and how many
+    // went to the database since the provider started (long), and how many results it holds (int)
+    public static final String EXTRA_CACHE_ENABLED = "cache_enabled";
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+    // The date the forecast starts on (long, today if missing), and the most days to answer
+    // with (int, -1 or missing for all of them)
+    public static final String EXTRA_START_DATE = "start_date";
+    public static final String EXTRA_LIMIT = "limit";
+
+    // Days are counted in the default time zone.  TimeZone.getDefault() returns a new copy every
+    // time, so it is read once and read again when the time zone changes.
+    private static volatile TimeZone sTimeZone;
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of their local day.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        TimeZone timeZone = getTimeZone();
+        return getDayStart(getEpochDay(startDate, timeZone), timeZone);
+    }
+
+    /**
+     * @return the local day of the date, counted in days since January 1st, 1970
+     */
+    public static int getEpochDay(long date) {
+        return getEpochDay(date, getTimeZone());
+    }
+
+    /**
+     * @return the time at which the local day starts, usually its midnight
+     */
+    public static long getDayStart(int epochDay) {
+        return getDayStart(epochDay, getTimeZone());
+    }
+
+    static int getEpochDay(long date, TimeZone timeZone) {
+        long localDate = date + timeZone.getOffset(date);
+        long epochDay = localDate / DateUtils.DAY_IN_MILLIS;
+        if (localDate % DateUtils.DAY_IN_MILLIS < 0) {
+            epochDay--;
+        }
+        return (int) epochDay;
+    }
+
+    static long getDayStart(int epochDay, TimeZone timeZone) {
+        long localMidnight = epochDay * DateUtils.DAY_IN_MILLIS;
+        // Midnight in the offsets in effect a day before and a day after it, which only differ
+        // around a daylight saving change.  The earlier of the two that is midnight in its own
+        // offset starts the day.
+        long before = localMidnight - timeZone.getOffset(localMidnight - DateUtils.DAY_IN_MILLIS);
+        long after = localMidnight - timeZone.getOffset(localMidnight + DateUtils.DAY_IN_MILLIS);
+        long earlier = Math.min(before, after);
+        long later = Math.max(before, after);
+        if (earlier + timeZone.getOffset(earlier) == localMidnight) {
+            return earlier;
+        }
+        // Either midnight in the later offset, or a change skipped midnight and the day starts
+        // when the change is over, which is that same time
+        return later;
+    }
+
+    /**
+     * @return the time zone days are counted in, the same instance until it changes
+     */
+    public static TimeZone getTimeZone() {
+        TimeZone timeZone = sTimeZone;
+        if (timeZone == null) {
+            timeZone = TimeZone.getDefault();
+            sTimeZone = timeZone;
+        }
+        return timeZone;
+    }
+
+    /**
+     * Makes days be counted in the current default time zone from now on.
+     */
+    static void onTimeZoneChanged() {
+        sTimeZone = null;
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -68,6 +169,10 @@ public class WeatherContract {
         // Table name
         public static final String TABLE_NAME = "location";
 
+        // Query parameter turning an insert into a get-or-insert: if a location with the same
+        // location setting is stored, its URI is returned and nothing is written.
+        public static final String QUERY_PARAM_GET_OR_INSERT = "get_or_insert";
+
         // The location setting string is what will be sent to openweathermap
         // as the location query.
         public static final String COLUMN_LOCATION_SETTING = "location_setting";
@@ -81,9 +186,29 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Cache validators of the last forecast stored for this location, sent back to
+        // openweathermap so an unchanged forecast doesn't have to be downloaded and stored again.
+        // The ETag and Last-Modified headers of the response, and a hash of its body.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_BODY_HASH = "body_hash";
+        // Epoch day (see getEpochDay()) on which the validators were stored.  Dates of the stored forecast are
+        // derived from the day it was fetched, so the validators are only good for that day.
+        public static final String COLUMN_VALIDATED_DAY = "validated_day";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationGetOrInsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_GET_OR_INSERT, Boolean.TRUE.toString())
+                    .build();
+        }
+
+        public static boolean isGetOrInsertUri(Uri uri) {
+            return Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAM_GET_OR_INSERT));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -99,10 +224,43 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
+        // Query parameter turning a bulkInsert into an upsert: rows are matched on
+        // (epoch_day, location_id), only rows whose values differ are written, and only the
+        // location/date URIs of those rows are notified.
+        public static final String QUERY_PARAM_UPSERT = "upsert";
+
+        // Query parameters of the row URI returned when inserting a single row on an upsert
+        // URI: what happened to the row, and for changed rows how far their temperatures moved
+        // and whether their condition changed.
+        public static final String QUERY_PARAM_UPSERT_OUTCOME = "outcome";
+        public static final String QUERY_PARAM_TEMPERATURE_DELTA = "temperature_delta";
+        public static final String QUERY_PARAM_CONDITION_CHANGED = "condition_changed";
+        public static final String UPSERT_INSERTED = "inserted";
+        public static final String UPSERT_CHANGED = "changed";
+        public static final String UPSERT_UNCHANGED = "unchanged";
+
+        // Query parameters narrowing the days of a location: the date of the last day, the date
+        // of the day before the first one, to page on from the last day of a page, and how many
+        // days to skip and to return at most.  Days are sorted by date unless the query gives
+        // another sort order.
+        public static final String QUERY_PARAM_END_DATE = "end_date";
+        public static final String QUERY_PARAM_AFTER_DATE = "after_date";
+        public static final String QUERY_PARAM_LIMIT = "limit";
+        public static final String QUERY_PARAM_OFFSET = "offset";
+
+        // Query parameter turning a delete into a move to the archive: the rows deleted are
+        // copied to ArchiveEntry and rolled up into RollupEntry first.  Its value is how many
+        // days of daily history to keep, archived days older than that are dropped, their
+        // rollups are kept.
+        public static final String QUERY_PARAM_ARCHIVE = "archive";
+
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
         public static final String COLUMN_DATE = "date";
+        // The local day of the date, as an int counting days since the epoch.  Filled in by the
+        // provider, from the date.
+        public static final String COLUMN_EPOCH_DAY = "epoch_day";
         // Weather id as returned by API, to identify the icon to be used
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -130,6 +288,57 @@ public class WeatherContract {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        public static Uri buildWeatherUpsertUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_UPSERT, Boolean.TRUE.toString()).build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAM_UPSERT));
+        }
+
+        public static Uri buildWeatherArchiveUri(int retentionDays) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_ARCHIVE, Integer.toString(retentionDays))
+                    .build();
+        }
+
+        public static boolean isArchiveUri(Uri uri) {
+            return uri.getQueryParameter(QUERY_PARAM_ARCHIVE) != null;
+        }
+
+        /**
+         * @return how many days of daily history the archive URI keeps
+         */
+        public static int getRetentionDaysFromUri(Uri uri) {
+            return Integer.parseInt(uri.getQueryParameter(QUERY_PARAM_ARCHIVE));
+        }
+
+        public static Uri buildWeatherUpsertResultUri(long id, String outcome,
+                                                      double temperatureDelta,
+                                                      boolean conditionChanged) {
+            return buildWeatherUri(id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_UPSERT_OUTCOME, outcome)
+                    .appendQueryParameter(QUERY_PARAM_TEMPERATURE_DELTA,
+                            Double.toString(temperatureDelta))
+                    .appendQueryParameter(QUERY_PARAM_CONDITION_CHANGED,
+                            Boolean.toString(conditionChanged))
+                    .build();
+        }
+
+        public static String getUpsertOutcomeFromUri(Uri uri) {
+            return uri.getQueryParameter(QUERY_PARAM_UPSERT_OUTCOME);
+        }
+
+        public static double getTemperatureDeltaFromUri(Uri uri) {
+            String temperatureDelta = uri.getQueryParameter(QUERY_PARAM_TEMPERATURE_DELTA);
+            return temperatureDelta == null ? 0 : Double.parseDouble(temperatureDelta);
+        }
+
+        public static boolean isConditionChangedUri(Uri uri) {
+            return Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAM_CONDITION_CHANGED));
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
@@ -144,6 +353,37 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_END_DATE,
+                            Long.toString(normalizeDate(endDate))).build();
+        }
+
+        /**
+         * @return the URI of the days after the date, at most limit of them.  Paging on from the
+         * last date of a page doesn't skip or repeat days when days are added or dropped in the
+         * meantime, unlike paging by offset.
+         */
+        public static Uri buildWeatherLocationAfterDate(
+                String locationSetting, long afterDate, int limit) {
+            return withLimit(CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(QUERY_PARAM_AFTER_DATE,
+                            Long.toString(normalizeDate(afterDate))).build(), limit, 0);
+        }
+
+        /**
+         * @return the URI with at most limit days, skipping the first offset days
+         */
+        public static Uri withLimit(Uri uri, int limit, int offset) {
+            Uri.Builder builder = uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit));
+            if (offset != 0) {
+                builder.appendQueryParameter(QUERY_PARAM_OFFSET, Integer.toString(offset));
+            }
+            return builder.build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -164,5 +404,185 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /**
+         * @return the end date of the URI, or 0 if it has none
+         */
+        public static long getEndDateFromUri(Uri uri) {
+            return getLongParameter(uri, QUERY_PARAM_END_DATE, 0);
+        }
+
+        /**
+         * @return the date the days of the URI come after, or 0 if it has none
+         */
+        public static long getAfterDateFromUri(Uri uri) {
+            return getLongParameter(uri, QUERY_PARAM_AFTER_DATE, 0);
+        }
+
+        /**
+         * @return the most days the URI asks for, or -1 if there is no limit
+         */
+        public static int getLimitFromUri(Uri uri) {
+            return (int) getLongParameter(uri, QUERY_PARAM_LIMIT, -1);
+        }
+
+        public static int getOffsetFromUri(Uri uri) {
+            return (int) getLongParameter(uri, QUERY_PARAM_OFFSET, 0);
+        }
+
+        private static long getLongParameter(Uri uri, String name, long defaultValue) {
+            String value = uri.getQueryParameter(name);
+            return TextUtils.isEmpty(value) ? defaultValue : Long.parseLong(value);
+        }
+    }
+
+    /* Inner class that defines the table contents of the weather archive table */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+
+        // Days moved out of the weather table once they are over, one row per location and
+        // day, with the columns of WeatherEntry.  Kept for the retention given to
+        // WeatherEntry.buildWeatherArchiveUri().
+        public static final String TABLE_NAME = "weather_archive";
+
+        public static Uri buildArchiveLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the URI of the archived days of the location from the start date to the end
+         * date, either of which can be 0 to leave that end open.  Days are sorted by date unless
+         * the query gives another sort order.
+         */
+        public static Uri buildArchiveLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            Uri.Builder builder = buildArchiveLocation(locationSetting).buildUpon();
+            if (startDate != 0) {
+                builder.appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                        Long.toString(normalizeDate(startDate)));
+            }
+            if (endDate != 0) {
+                builder.appendQueryParameter(WeatherEntry.QUERY_PARAM_END_DATE,
+                        Long.toString(normalizeDate(endDate)));
+            }
+            return builder.build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /* Inner class that defines the table contents of the weather rollup table */
+    public static final class RollupEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ROLLUP).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ROLLUP;
+
+        // Archived days summed up per location and week or month.  Every day is added to its
+        // week and its month once, when it is archived, and rollups are never dropped.
+        public static final String TABLE_NAME = "weather_rollup";
+
+        // Periods rolled up.  Weeks start on Monday.
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_MONTH = "month";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // PERIOD_WEEK or PERIOD_MONTH
+        public static final String COLUMN_PERIOD = "period";
+        // Epoch day (see getEpochDay()) of the first day of the period
+        public static final String COLUMN_START_DAY = "start_day";
+        // How many days of the period were archived
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        // Lowest low and highest high temperature of those days
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // Means of the lows, highs, humidity, pressure and wind speed of those days
+        public static final String COLUMN_AVG_MIN_TEMP = "avg_min";
+        public static final String COLUMN_AVG_MAX_TEMP = "avg_max";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_AVG_PRESSURE = "avg_pressure";
+        public static final String COLUMN_AVG_WIND_SPEED = "avg_wind";
+
+        public static Uri buildRollupLocation(String locationSetting, String period) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(period).build();
+        }
+
+        /**
+         * @return the URI of the periods of the location starting from the start date to the
+         * end date, either of which can be 0 to leave that end open.  Periods are sorted by
+         * their first day unless the query gives another sort order.
+         */
+        public static Uri buildRollupLocationWithDateRange(
+                String locationSetting, String period, long startDate, long endDate) {
+            Uri.Builder builder = buildRollupLocation(locationSetting, period).buildUpon();
+            if (startDate != 0) {
+                builder.appendQueryParameter(WeatherEntry.COLUMN_DATE,
+                        Long.toString(normalizeDate(startDate)));
+            }
+            if (endDate != 0) {
+                builder.appendQueryParameter(WeatherEntry.QUERY_PARAM_END_DATE,
+                        Long.toString(normalizeDate(endDate)));
+            }
+            return builder.build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getPeriodFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // The table is a ring buffer: once it holds this many rows, every insert drops the
+        // oldest row.
+        public static final int MAX_ROWS = 2000;
+
+        // Start of the sync the row belongs to, in milliseconds since the epoch.  All the
+        // phases of a sync share it.
+        public static final String COLUMN_SYNC_START = "sync_start";
+        // Phase of the sync measured, one of the PHASE_* values
+        public static final String COLUMN_PHASE = "phase";
+        // Wall clock and thread CPU time spent in the phase, in microseconds.  Phases run for
+        // several locations at once are summed over the locations.
+        public static final String COLUMN_WALL_TIME = "wall_time";
+        public static final String COLUMN_CPU_TIME = "cpu_time";
+        // Bytes received for the download phase, rows for the database phases, locations for
+        // the whole sync
+        public static final String COLUMN_ITEMS = "items";
+
+        public static final String PHASE_SYNC = "sync";
+        public static final String PHASE_CONNECT = "connect";
+        public static final String PHASE_DOWNLOAD = "download";
+        public static final String PHASE_PARSE = "parse";
+        // Storing the locations, forecasts and validators, and pruning old days, in one batch
+        public static final String PHASE_APPLY_BATCH = "apply_batch";
+        public static final String PHASE_SNAPSHOT = "snapshot";
+        public static final String PHASE_UPDATE_WIDGETS = "update_widgets";
+        public static final String PHASE_UPDATE_MUZEI = "update_muzei";
+        public static final String PHASE_NOTIFY_WEATHER = "notify_weather";
+        public static final String PHASE_UPDATE_WEARABLE = "update_wearable";
     }
 }
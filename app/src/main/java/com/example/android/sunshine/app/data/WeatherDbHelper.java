@@ -15,37 +15,145 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * Where available (Honeycomb and higher) the database uses write-ahead logging, so that the
+ * sync writing forecasts doesn't block the UI, widgets and wearable reading them, and reads on
+ * different threads get connections of their own.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    // If you change the database schema, you must increment the database version, and add the
+    // step from the previous version to upgradeFrom().
+    static final int DATABASE_VERSION = 7;
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // Oldest version upgradeFrom() knows, older databases are dropped and created again
+    static final int OLDEST_UPGRADABLE_VERSION = 2;
+
+    // Julian day of January 1st, 1970, which epoch days count from
+    private static final int EPOCH_JULIAN_DAY = 2440588;
 
     static final String DATABASE_NAME = "weather.db";
 
+    /**
+     * When the write-ahead log is copied back into the database.
+     */
+    static class CheckpointPolicy {
+        // Default policy: the sync writes a few hundred rows at once, which fit well within
+        // the automatic checkpoint, and a passive checkpoint after each batch keeps the log
+        // from growing while readers hold on to old snapshots.
+        static final CheckpointPolicy DEFAULT = new CheckpointPolicy(1000, true);
+
+        // Pages in the log that trigger an automatic checkpoint at commit, 0 to turn them off
+        final int autoCheckpointPages;
+        // Whether to checkpoint, without waiting for readers, after each batch of writes
+        final boolean checkpointAfterBatch;
+
+        CheckpointPolicy(int autoCheckpointPages, boolean checkpointAfterBatch) {
+            this.autoCheckpointPages = autoCheckpointPages;
+            this.checkpointAfterBatch = checkpointAfterBatch;
+        }
+    }
+
+    private final boolean mWriteAheadLogging;
+    private final CheckpointPolicy mCheckpointPolicy;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true, CheckpointPolicy.DEFAULT);
+    }
+
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging,
+                    CheckpointPolicy checkpointPolicy) {
+        super(context, name, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        mCheckpointPolicy = checkpointPolicy;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLogging(mWriteAheadLogging);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setWriteAheadLogging(boolean enabled) {
+        setWriteAheadLoggingEnabled(enabled);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!mWriteAheadLogging || db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+        runPragma(db, "wal_autocheckpoint=" + mCheckpointPolicy.autoCheckpointPages);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Called by the provider once a batch of writes is committed.
+     */
+    void onBatchCommitted(SQLiteDatabase db) {
+        if (mWriteAheadLogging && mCheckpointPolicy.checkpointAfterBatch) {
+            runPragma(db, "wal_checkpoint(PASSIVE)");
+        }
+    }
+
+    boolean isWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        // These pragmas answer with a row, which execSQL() doesn't accept on every version
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // Ids cached from a database that has been deleted or dropped don't mean anything here
+        LocationCache.invalidate();
+
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, and the latitude and longitude, plus the cache
+        // validators of the last forecast stored for it
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_BODY_HASH + " TEXT, " +
+                LocationEntry.COLUMN_VALIDATED_DAY + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -59,6 +167,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 // the ID of the location entry associated with this weather data
                 WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
                 WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_EPOCH_DAY + " INTEGER NOT NULL, " +
                 WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
@@ -81,18 +190,179 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        createWeatherLocationDayIndex(sqLiteDatabase);
+        createSyncMetricsTable(sqLiteDatabase);
+        createArchiveTables(sqLiteDatabase);
+    }
+
+    private static void createWeatherLocationDayIndex(SQLiteDatabase db) {
+        // Weather of a location over a range of days, sorted by day, which is how the provider
+        // reads it.  The UNIQUE constraint's (date, location_id) index serves pruning by date.
+        db.execSQL("CREATE INDEX " + WeatherEntry.TABLE_NAME + "_location_day ON " +
+                WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_EPOCH_DAY + ");");
+    }
+
+    private static void createSyncMetricsTable(SQLiteDatabase db) {
+        // One row per phase of each sync.  The trigger keeps only the newest MAX_ROWS rows,
+        // which is why the ids have to keep increasing.
+        final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+                SyncMetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                SyncMetricsEntry.COLUMN_SYNC_START + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+                SyncMetricsEntry.COLUMN_WALL_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_CPU_TIME + " INTEGER NOT NULL, " +
+                SyncMetricsEntry.COLUMN_ITEMS + " INTEGER NOT NULL " +
+                " );";
+
+        final String SQL_CREATE_SYNC_METRICS_TRIGGER = "CREATE TRIGGER " +
+                SyncMetricsEntry.TABLE_NAME + "_ring_buffer AFTER INSERT ON " +
+                SyncMetricsEntry.TABLE_NAME + " BEGIN DELETE FROM " + SyncMetricsEntry.TABLE_NAME +
+                " WHERE " + SyncMetricsEntry._ID + " <= NEW." + SyncMetricsEntry._ID +
+                " - " + SyncMetricsEntry.MAX_ROWS + "; END;";
+        db.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        db.execSQL(SQL_CREATE_SYNC_METRICS_TRIGGER);
+    }
+
+    private static void createArchiveTables(SQLiteDatabase db) {
+        // Past days, with the columns of the weather table.  The UNIQUE constraint's index
+        // serves reading the days of a location by day.
+        final String SQL_CREATE_ARCHIVE_TABLE = "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_EPOCH_DAY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_EPOCH_DAY + ") ON CONFLICT REPLACE);";
+
+        // One row per location, period and first day of the period, which the UNIQUE
+        // constraint's index finds
+        final String SQL_CREATE_ROLLUP_TABLE = "CREATE TABLE " + RollupEntry.TABLE_NAME + " (" +
+                RollupEntry._ID + " INTEGER PRIMARY KEY," +
+                RollupEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                RollupEntry.COLUMN_PERIOD + " TEXT NOT NULL, " +
+                RollupEntry.COLUMN_START_DAY + " INTEGER NOT NULL, " +
+                RollupEntry.COLUMN_DAY_COUNT + " INTEGER NOT NULL, " +
+                RollupEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_MIN_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_MAX_TEMP + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_HUMIDITY + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_PRESSURE + " REAL NOT NULL, " +
+                RollupEntry.COLUMN_AVG_WIND_SPEED + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + RollupEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + RollupEntry.COLUMN_LOC_KEY + ", " + RollupEntry.COLUMN_PERIOD +
+                ", " + RollupEntry.COLUMN_START_DAY + ") ON CONFLICT REPLACE);";
+
+        db.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+        // Days past the retention, of every location, are dropped at every sync
+        db.execSQL("CREATE INDEX " + ArchiveEntry.TABLE_NAME + "_day ON " +
+                ArchiveEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_EPOCH_DAY + ");");
+        db.execSQL(SQL_CREATE_ROLLUP_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        // Step through every version in between, keeping the cached forecasts and locations, so
+        // the app still has something to show before its first sync after an update.  All of it
+        // runs in the one transaction SQLiteOpenHelper opens for the upgrade.
+        if (oldVersion < OLDEST_UPGRADABLE_VERSION) {
+            recreate(sqLiteDatabase);
+            return;
+        }
+        try {
+            for (int version = oldVersion; version < newVersion; version++) {
+                upgradeFrom(sqLiteDatabase, version);
+            }
+        } catch (SQLException e) {
+            // This database is only a cache for online data, so rather than not opening at all,
+            // start over
+            Log.e(LOG_TAG, "Error upgrading from version " + oldVersion + ", recreating", e);
+            recreate(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * Upgrades the schema from the version to the next one.
+     */
+    private static void upgradeFrom(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Cache validators of the last forecast stored for each location
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_ETAG, "TEXT");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_LAST_MODIFIED, "TEXT");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_BODY_HASH, "TEXT");
+                addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_VALIDATED_DAY,
+                        "INTEGER");
+                break;
+            case 3:
+                createSyncMetricsTable(db);
+                break;
+            case 4:
+                db.execSQL("CREATE INDEX weather_location_date ON weather (location_id, date);");
+                break;
+            case 5:
+                // Weather days found by their epoch day rather than their start in
+                // milliseconds, and validated days counted in epoch days rather than Julian days
+                addColumn(db, WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_EPOCH_DAY,
+                        "INTEGER NOT NULL DEFAULT 0");
+                fillEpochDays(db);
+                db.execSQL("DROP INDEX weather_location_date");
+                createWeatherLocationDayIndex(db);
+                db.execSQL("UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                        LocationEntry.COLUMN_VALIDATED_DAY + " = " +
+                        LocationEntry.COLUMN_VALIDATED_DAY + " - " + EPOCH_JULIAN_DAY);
+                break;
+            case 6:
+                // Past days are archived and rolled up rather than deleted
+                createArchiveTables(db);
+                break;
+            default:
+                throw new SQLException("No upgrade from version " + version);
+        }
+    }
+
+    private static void fillEpochDays(SQLiteDatabase db) {
+        // Only a few distinct dates, each shared by every location
+        Cursor dates = db.query(true, WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null, null, null, null);
+        SQLiteStatement update = db.compileStatement("UPDATE " + WeatherEntry.TABLE_NAME +
+                " SET " + WeatherEntry.COLUMN_EPOCH_DAY + " = ? WHERE " +
+                WeatherEntry.COLUMN_DATE + " = ?");
+        try {
+            while (dates.moveToNext()) {
+                long date = dates.getLong(0);
+                update.bindLong(1, WeatherContract.getEpochDay(date));
+                update.bindLong(2, date);
+                update.execute();
+            }
+        } finally {
+            update.close();
+            dates.close();
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase db, String table, String column, String type) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + RollupEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Inserts weather rows through a single compiled INSERT statement, instead of building and
+ * compiling the SQL again for every row like SQLiteDatabase.insert() does.  Dates are normalized
+ * and their epoch day filled in.  Meant to be used within one transaction and closed at its end.
+ */
+class WeatherInserter {
+    // Order of the statement's parameters
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    private static final int DATE_INDEX = 1;
+    // The epoch day follows the columns above
+    private static final int EPOCH_DAY_PARAMETER = COLUMNS.length + 1;
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mStatement;
+    private final DateNormalizer mDateNormalizer = new DateNormalizer();
+
+    WeatherInserter(SQLiteDatabase db) {
+        mDb = db;
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(COLUMNS[i]);
+        }
+        sql.append(',').append(WeatherEntry.COLUMN_EPOCH_DAY).append(") VALUES (");
+        for (int i = 0; i < EPOCH_DAY_PARAMETER; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        mStatement = db.compileStatement(sql.append(')').toString());
+    }
+
+    /**
+     * Inserts one row, normalizing its date.  Rows with columns the statement doesn't have go
+     * through SQLiteDatabase.insert().
+     * @return the row ID of the inserted row, or -1 if it couldn't be inserted
+     */
+    long insert(ContentValues values) {
+        int knownColumns = 0;
+        for (String column : COLUMNS) {
+            if (values.containsKey(column)) {
+                knownColumns++;
+            }
+        }
+        Long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (knownColumns != values.size()) {
+            if (date != null) {
+                values.put(WeatherEntry.COLUMN_DATE, mDateNormalizer.normalize(date));
+                values.put(WeatherEntry.COLUMN_EPOCH_DAY, mDateNormalizer.getEpochDay(date));
+            }
+            return mDb.insert(WeatherEntry.TABLE_NAME, null, values);
+        }
+
+        mStatement.clearBindings();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i == DATE_INDEX) {
+                if (date != null) {
+                    mStatement.bindLong(i + 1, mDateNormalizer.normalize(date));
+                    mStatement.bindLong(EPOCH_DAY_PARAMETER, mDateNormalizer.getEpochDay(date));
+                }
+                continue;
+            }
+            bind(i + 1, values.get(COLUMNS[i]));
+        }
+        return executeInsert();
+    }
+
+    /**
+     * Inserts the row at the index of the batch, normalizing its date.
+     * @return the row ID of the inserted row, or -1 if it couldn't be inserted
+     */
+    long insert(WeatherBatch batch, int index) {
+        mStatement.clearBindings();
+        mStatement.bindLong(1, batch.mLocationIds[index]);
+        mStatement.bindLong(2, mDateNormalizer.normalize(batch.mDates[index]));
+        mStatement.bindLong(3, batch.mWeatherIds[index]);
+        if (batch.mDescriptions[index] != null) {
+            mStatement.bindString(4, batch.mDescriptions[index]);
+        }
+        mStatement.bindDouble(5, batch.mHighs[index]);
+        mStatement.bindDouble(6, batch.mLows[index]);
+        mStatement.bindDouble(7, batch.mHumidities[index]);
+        mStatement.bindDouble(8, batch.mPressures[index]);
+        mStatement.bindDouble(9, batch.mWindSpeeds[index]);
+        mStatement.bindDouble(10, batch.mDegrees[index]);
+        mStatement.bindLong(EPOCH_DAY_PARAMETER, mDateNormalizer.getEpochDay(batch.mDates[index]));
+        return executeInsert();
+    }
+
+    void close() {
+        mStatement.close();
+    }
+
+    private long executeInsert() {
+        try {
+            return mStatement.executeInsert();
+        } catch (SQLException e) {
+            // Same as SQLiteDatabase.insert(), which reports failed rows instead of throwing
+            return -1;
+        }
+    }
+
+    /**
+     * Binds a value the way SQLiteDatabase.insert() would.  Unbound parameters are NULL.
+     */
+    private void bind(int index, Object value) {
+        if (value == null) {
+            return;
+        } else if (value instanceof Double || value instanceof Float) {
+            mStatement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            mStatement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            mStatement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            mStatement.bindBlob(index, (byte[]) value);
+        } else {
+            mStatement.bindString(index, value.toString());
+        }
+    }
+}
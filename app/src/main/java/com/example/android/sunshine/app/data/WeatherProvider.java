@@ -17,25 +17,51 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    // Results of the weather/* queries, null when disabled
+    private QueryCache mQueryCache;
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_METRICS = 400;
+    static final int ARCHIVE = 500;
+    static final int ARCHIVE_WITH_LOCATION = 501;
+    static final int ROLLUP = 600;
+    static final int ROLLUP_WITH_LOCATION_AND_PERIOD = 601;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,46 +77,206 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    // Columns only the location table has.  Weather queries join it only when one of them, or
+    // a column qualified with its name, is asked for.
+    private static final HashSet<String> sLocationColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_BODY_HASH,
+            WeatherContract.LocationEntry.COLUMN_VALIDATED_DAY));
+
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+    // Weather is found by the id of its location, looked up once through the LocationCache,
+    // and days by their epoch day, which still matches after the time zone changes, unlike the
+    // start of the day in milliseconds.  The location id is qualified for the joined queries.
+
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    // Appended to sLocationIdSelection for the start, end and after dates of the URI
+
+    //AND epoch_day >= ?
+    static final String sStartDayClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " >= ? ";
+
+    //AND epoch_day <= ?
+    static final String sEndDayClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " <= ? ";
+
+    //AND epoch_day > ?
+    static final String sAfterDayClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " > ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+    static final String sDaySortOrder = WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " ASC";
+
+    // The archive has the columns of the weather table, and is never joined
+
+    //location_id = ?
+    static final String sArchiveLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //location_id = ? AND period = ?
+    static final String sRollupLocationIdAndPeriodSelection =
+            WeatherContract.RollupEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.RollupEntry.COLUMN_PERIOD + " = ? ";
+
+    //AND start_day >= ?
+    static final String sRollupStartDayClause =
+            "AND " + WeatherContract.RollupEntry.COLUMN_START_DAY + " >= ? ";
+
+    //AND start_day <= ?
+    static final String sRollupEndDayClause =
+            "AND " + WeatherContract.RollupEntry.COLUMN_START_DAY + " <= ? ";
+
+    static final String sRollupSortOrder = WeatherContract.RollupEntry.COLUMN_START_DAY + " ASC";
+
+    //weather.location_id = ? AND epoch_day = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY + " = ? ";
+
+    /**
+     * Outcome of an upsert of weather rows.
+     */
+    static class UpsertResult {
+        int inserted;
+        int changed;
+        int unchanged;
+        double temperatureDelta;
+        int conditionChanges;
+        // Location ids with at least one inserted or changed row
+        final LongSparseArray<String> changedLocations = new LongSparseArray<String>();
+        // Location/date URIs of the rows written
+        final ArrayList<Uri> changedUris = new ArrayList<Uri>();
+
+        Bundle toBundle() {
+            long[] changedLocationIds = new long[changedLocations.size()];
+            for (int i = 0; i < changedLocationIds.length; i++) {
+                changedLocationIds[i] = changedLocations.keyAt(i);
+            }
+            Bundle bundle = new Bundle();
+            bundle.putInt(WeatherContract.EXTRA_INSERTED_COUNT, inserted);
+            bundle.putInt(WeatherContract.EXTRA_CHANGED_COUNT, changed);
+            bundle.putInt(WeatherContract.EXTRA_UNCHANGED_COUNT, unchanged);
+            bundle.putLongArray(WeatherContract.EXTRA_CHANGED_LOCATION_IDS, changedLocationIds);
+            bundle.putDouble(WeatherContract.EXTRA_TEMPERATURE_DELTA, temperatureDelta);
+            bundle.putInt(WeatherContract.EXTRA_CONDITION_CHANGES, conditionChanges);
+            return bundle;
+        }
+    }
+
+    /**
+     * Notifications and cache invalidations held back until the batch being applied on a thread
+     * is committed.
+     */
+    private static class PendingChanges {
+        final LinkedHashSet<Uri> uris = new LinkedHashSet<Uri>();
+        // Location settings whose cached weather is stale, unless all of it is
+        final HashSet<String> staleLocations = new HashSet<String>();
+        boolean allStale;
+    }
+
+    private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<PendingChanges>();
 
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
 
-        String[] selectionArgs;
-        String selection;
+        StringBuilder selection = new StringBuilder(sLocationIdSelection);
+        ArrayList<String> selectionArgs = new ArrayList<String>(4);
+        selectionArgs.add(Long.toString(getLocationId(locationSetting)));
+        appendDayRange(uri, selection, selectionArgs, sStartDayClause, sEndDayClause);
+        if (afterDate != 0) {
+            selection.append(sAfterDayClause);
+            selectionArgs.add(Integer.toString(WeatherContract.getEpochDay(afterDate)));
+        }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
-        } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+        String limit = buildLimit(uri);
+        if (limit != null && sortOrder == null) {
+            // A page of days is only a page in a given order
+            sortOrder = sDaySortOrder;
         }
+        return queryWeather(projection, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), sortOrder, limit);
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * Appends the clauses of the start and end dates of the URI, if it has them, to the
+     * selection.
+     */
+    private static void appendDayRange(Uri uri, StringBuilder selection,
+                                       List<String> selectionArgs, String startDayClause,
+                                       String endDayClause) {
+        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+        if (startDate != 0) {
+            selection.append(startDayClause);
+            selectionArgs.add(Integer.toString(WeatherContract.getEpochDay(startDate)));
+        }
+        if (endDate != 0) {
+            selection.append(endDayClause);
+            selectionArgs.add(Integer.toString(WeatherContract.getEpochDay(endDate)));
+        }
+    }
+
+    private Cursor getArchiveByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.ArchiveEntry.getLocationSettingFromUri(uri);
+
+        StringBuilder selection = new StringBuilder(sArchiveLocationIdSelection);
+        ArrayList<String> selectionArgs = new ArrayList<String>(3);
+        selectionArgs.add(Long.toString(getLocationId(locationSetting)));
+        appendDayRange(uri, selection, selectionArgs, sStartDayClause, sEndDayClause);
+
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.ArchiveEntry.TABLE_NAME,
+                projection, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), null, null,
+                sortOrder == null ? sDaySortOrder : sortOrder);
+    }
+
+    private Cursor getRollupByLocationSettingAndPeriod(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.RollupEntry.getLocationSettingFromUri(uri);
+        String period = WeatherContract.RollupEntry.getPeriodFromUri(uri);
+
+        StringBuilder selection = new StringBuilder(sRollupLocationIdAndPeriodSelection);
+        ArrayList<String> selectionArgs = new ArrayList<String>(4);
+        selectionArgs.add(Long.toString(getLocationId(locationSetting)));
+        selectionArgs.add(period);
+        appendDayRange(uri, selection, selectionArgs, sRollupStartDayClause,
+                sRollupEndDayClause);
+
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.RollupEntry.TABLE_NAME,
+                projection, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), null, null,
+                sortOrder == null ? sRollupSortOrder : sortOrder);
+    }
+
+    /**
+     * @return the LIMIT clause asked for by the URI, or null if there is none
+     */
+    private static String buildLimit(Uri uri) {
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        int offset = WeatherContract.WeatherEntry.getOffsetFromUri(uri);
+        if (limit < -1 || offset < 0) {
+            throw new IllegalArgumentException("Bad limit or offset: " + uri);
+        }
+        if (offset != 0) {
+            // SQLite only takes an offset with a limit, and SQLiteQueryBuilder only takes them
+            // as "offset,limit" with no negative limit for none
+            return offset + "," + (limit == -1 ? Long.MAX_VALUE : limit);
+        }
+        return limit == -1 ? null : Integer.toString(limit);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
@@ -98,14 +284,99 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+        return queryWeather(projection,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(getLocationId(locationSetting)),
+                        Integer.toString(WeatherContract.getEpochDay(date))},
+                sortOrder,
+                null
+        );
+    }
+
+    private Cursor queryWeather(String[] projection, String selection, String[] selectionArgs,
+                                String sortOrder, String limit) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (needsLocation(projection)) {
+            return sWeatherByLocationSettingQueryBuilder.query(db, projection, selection,
+                    selectionArgs, null, null, sortOrder, limit);
+        }
+        return db.query(WeatherContract.WeatherEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, sortOrder, limit);
+    }
+
+    /**
+     * @return true if the projection asks for location columns, which only the weather joined
+     * with its location has
+     */
+    static boolean needsLocation(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (sLocationColumns.contains(column) || column.startsWith(
+                    WeatherContract.LocationEntry.TABLE_NAME + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the id of the stored location with the setting, or -1 if there is none, which no
+     * weather has
+     */
+    private long getLocationId(String locationSetting) {
+        LocationCache.Entry cached = LocationCache.get(locationSetting);
+        if (cached != null) {
+            return cached.getId();
+        }
+
+        int generation = LocationCache.getGeneration();
+        Cursor locationCursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                sLocationSettingSelection,
+                new String[]{locationSetting},
                 null,
                 null,
-                sortOrder
-        );
+                null);
+        try {
+            if (!locationCursor.moveToFirst()) {
+                return -1;
+            }
+            long _id = locationCursor.getLong(0);
+            LocationCache.put(locationSetting, _id,
+                    locationCursor.getDouble(1), locationCursor.getDouble(2), generation);
+            return _id;
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    /**
+     * Answers the weather queries of a location, with or without a date, from the query cache
+     * when it can, and caches what the database answers otherwise.
+     */
+    private Cursor getWeatherByLocationSettingCached(
+            Uri uri, String[] projection, String sortOrder) {
+        boolean withDate = sUriMatcher.match(uri) == WEATHER_WITH_LOCATION_AND_DATE;
+        if (mQueryCache == null) {
+            return withDate ? getWeatherByLocationSettingAndDate(uri, projection, sortOrder) :
+                    getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+
+        String key = QueryCache.buildKey(uri.toString(), projection, sortOrder);
+        Cursor cursor = mQueryCache.get(key);
+        if (cursor != null) {
+            return cursor;
+        }
+        int generation = mQueryCache.getGeneration();
+        cursor = withDate ? getWeatherByLocationSettingAndDate(uri, projection, sortOrder) :
+                getWeatherByLocationSetting(uri, projection, sortOrder);
+        return mQueryCache.put(key, WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                generation, cursor);
     }
 
     /*
@@ -130,6 +401,14 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
+
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/*", ARCHIVE_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP, ROLLUP);
+        matcher.addURI(authority, WeatherContract.PATH_ROLLUP + "/*/*",
+                ROLLUP_WITH_LOCATION_AND_PERIOD);
         return matcher;
     }
 
@@ -140,6 +419,9 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        if (getContext().getResources().getBoolean(R.bool.query_cache_enabled)) {
+            mQueryCache = new QueryCache();
+        }
         return true;
     }
 
@@ -164,6 +446,14 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
+            case ARCHIVE:
+            case ARCHIVE_WITH_LOCATION:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
+            case ROLLUP:
+            case ROLLUP_WITH_LOCATION_AND_PERIOD:
+                return WeatherContract.RollupEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -178,13 +468,9 @@ public class WeatherProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = getWeatherByLocationSettingCached(uri, projection, sortOrder);
                 break;
             }
             // "weather"
@@ -213,6 +499,55 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_metrics"
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "archive/*"
+            case ARCHIVE_WITH_LOCATION: {
+                retCursor = getArchiveByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "archive"
+            case ARCHIVE: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.ArchiveEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "rollup/*/*"
+            case ROLLUP_WITH_LOCATION_AND_PERIOD: {
+                retCursor = getRollupByLocationSettingAndPeriod(uri, projection, sortOrder);
+                break;
+            }
+            // "rollup"
+            case ROLLUP: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.RollupEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -232,6 +567,9 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    return upsertWeather(uri, values);
+                }
                 normalizeDate(values);
                 long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
@@ -241,9 +579,21 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
             case LOCATION: {
+                if (WeatherContract.LocationEntry.isGetOrInsertUri(uri)) {
+                    return getOrInsertLocation(uri, values);
+                }
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    cacheLocation(values, _id);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_METRICS: {
+                long _id = db.insert(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,7 +601,14 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (match == LOCATION) {
+            // Only weather stored ahead of its location could join with it
+            invalidateCaches(values.getAsString(
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+        } else if (match != SYNC_METRICS) {
+            invalidateCaches(null);
+        }
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -264,28 +621,132 @@ public class WeatherProvider extends ContentProvider {
         if ( null == selection ) selection = "1";
         switch (match) {
             case WEATHER:
+                if (WeatherContract.WeatherEntry.isArchiveUri(uri)) {
+                    return archiveWeather(uri, selection, selectionArgs);
+                }
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationCache.invalidate();
+                break;
+            case SYNC_METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case ARCHIVE:
+                rowsDeleted = db.delete(
+                        WeatherContract.ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case ROLLUP:
+                rowsDeleted = db.delete(
+                        WeatherContract.RollupEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            // Only the weather and location tables are cached
+            if (match == WEATHER || match == LOCATION) {
+                invalidateCaches(null);
+            }
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Moves the weather rows matching the selection to the archive, see
+     * {@link WeatherContract.WeatherEntry#QUERY_PARAM_ARCHIVE}.
+     * @return the number of weather rows moved
+     */
+    private int archiveWeather(Uri uri, String selection, String[] selectionArgs) {
+        int retentionDays = WeatherContract.WeatherEntry.getRetentionDaysFromUri(uri);
+        int rowsMoved = WeatherArchive.archive(mOpenHelper.getWritableDatabase(), selection,
+                selectionArgs, retentionDays);
+        if (rowsMoved != 0) {
+            invalidateCaches(null);
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI);
+            notifyChange(WeatherContract.RollupEntry.CONTENT_URI);
+        }
+        return rowsMoved;
+    }
+
+    /**
+     * Returns the URI of the stored location with the location setting of the values, inserting
+     * the values first if there is none.  The lookup and the insert share a transaction, so two
+     * callers adding the same location can't both insert it.  Only an insert is notified.
+     */
+    private Uri getOrInsertLocation(Uri uri, ContentValues values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Locations need a location setting");
+        }
+
+        long _id;
+        boolean inserted = false;
+        db.beginTransaction();
+        try {
+            Cursor locationCursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID,
+                            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                            WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                    sLocationSettingSelection,
+                    new String[]{locationSetting},
+                    null,
+                    null,
+                    null);
+            try {
+                if (locationCursor.moveToFirst()) {
+                    _id = locationCursor.getLong(0);
+                    LocationCache.put(locationSetting, _id,
+                            locationCursor.getDouble(1), locationCursor.getDouble(2));
+                } else {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    if (_id <= 0) {
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    }
+                    inserted = true;
+                }
+            } finally {
+                locationCursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (inserted) {
+            cacheLocation(values, _id);
+            invalidateCaches(locationSetting);
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return WeatherContract.LocationEntry.buildLocationUri(_id);
+    }
+
+    private static void cacheLocation(ContentValues values, long _id) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        Double lat = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double lon = values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (locationSetting != null && lat != null && lon != null) {
+            LocationCache.put(locationSetting, _id, lat, lon);
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
-        // normalize the date value
+        // normalize the date value, and fill in its epoch day
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            int epochDay = WeatherContract.getEpochDay(dateValue);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.getDayStart(epochDay));
+            values.put(WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY, epochDay);
         }
     }
 
@@ -301,16 +762,34 @@ public class WeatherProvider extends ContentProvider {
                 normalizeDate(values);
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    invalidateCaches(null);
+                }
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // Saving cache validators, which every sync does, doesn't change what is
+                // cached.  Weather cached with every column keeps the validators it was read
+                // with, but validators are only ever read from the location table.
+                boolean keysChanged =
+                        values.containsKey(WeatherContract.LocationEntry._ID) ||
+                        values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING) ||
+                        values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT) ||
+                        values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+                if (keysChanged) {
+                    LocationCache.invalidate();
+                }
+                if (rowsUpdated != 0 && (keysChanged ||
+                        values.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME))) {
+                    invalidateCaches(null);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +800,438 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    UpsertResult result = upsertWeather(values);
+                    return result.inserted + result.changed;
+                }
                 db.beginTransaction();
                 int returnCount = 0;
+                WeatherInserter inserter = new WeatherInserter(db);
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = inserter.insert(value);
                         if (_id != -1) {
                             returnCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    inserter.close();
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                mOpenHelper.onBatchCommitted(db);
+                invalidateCaches(null);
+                notifyChange(uri);
                 return returnCount;
+            case SYNC_METRICS:
+                db.beginTransaction();
+                int metricsCount = 0;
+                try {
+                    for (ContentValues value : values) {
+                        long _id = db.insert(
+                                WeatherContract.SyncMetricsEntry.TABLE_NAME, null, value);
+                        if (_id != -1) {
+                            metricsCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
+                return metricsCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies all the operations in a single transaction, so that readers see either none or
+     * all of them.  Observers are notified once the transaction is committed, once per URI,
+     * leaving out the URIs whose ancestor is notified anyway.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        PendingChanges pending = new PendingChanges();
+        ContentProviderResult[] results;
+        boolean successful = false;
+
+        mPendingChanges.set(pending);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mPendingChanges.remove();
+            if (!successful) {
+                // Locations inserted by the batch are gone again
+                LocationCache.invalidate();
+            }
+        }
+        mOpenHelper.onBatchCommitted(db);
+
+        if (pending.allStale) {
+            invalidateCaches(null);
+        } else {
+            for (String locationSetting : pending.staleLocations) {
+                invalidateCaches(locationSetting);
+            }
+        }
+        for (Uri uri : pending.uris) {
+            if (!hasAncestorIn(uri, pending.uris)) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            pending.uris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Drops the forecast snapshot and the cached query results about the location, once the
+     * batch being applied, if any, is committed.  Dropping them any earlier would let readers
+     * cache what the batch is about to replace.
+     * @param locationSetting the location whose weather changed, null if unknown, which drops
+     * the cached results of every location
+     */
+    private void invalidateCaches(String locationSetting) {
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            if (locationSetting == null) {
+                pending.allStale = true;
+            } else {
+                pending.staleLocations.add(locationSetting);
+            }
+            return;
+        }
+
+        ForecastSnapshot.invalidate();
+        if (mQueryCache != null) {
+            if (locationSetting == null) {
+                mQueryCache.invalidate();
+            } else {
+                mQueryCache.invalidate(locationSetting);
+            }
+        }
+    }
+
+    /**
+     * @return true if one of the URIs is an ancestor of the URI.  Notifying a URI also
+     * notifies the observers of its descendants.
+     */
+    private static boolean hasAncestorIn(Uri uri, Collection<Uri> uris) {
+        List<String> segments = uri.getPathSegments();
+        for (Uri other : uris) {
+            List<String> otherSegments = other.getPathSegments();
+            if (otherSegments.size() < segments.size() &&
+                    TextUtils.equals(other.getAuthority(), uri.getAuthority()) &&
+                    segments.subList(0, otherSegments.size()).equals(otherSegments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            Parcelable[] parcelables = extras.getParcelableArray(WeatherContract.EXTRA_VALUES);
+            ContentValues[] values = new ContentValues[parcelables.length];
+            for (int i = 0; i < parcelables.length; i++) {
+                values[i] = (ContentValues) parcelables[i];
+            }
+            return upsertWeather(values).toBundle();
+        } else if (WeatherContract.METHOD_BULK_INSERT_WEATHER.equals(method)) {
+            Bundle inserted = new Bundle();
+            inserted.putInt(WeatherContract.EXTRA_INSERTED_COUNT,
+                    bulkInsertWeather(WeatherBatch.fromBundle(extras)));
+            return inserted;
+        } else if (WeatherContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putBoolean(WeatherContract.EXTRA_CACHE_ENABLED, mQueryCache != null);
+            if (mQueryCache != null) {
+                stats.putLong(WeatherContract.EXTRA_CACHE_HITS, mQueryCache.getHits());
+                stats.putLong(WeatherContract.EXTRA_CACHE_MISSES, mQueryCache.getMisses());
+                stats.putInt(WeatherContract.EXTRA_CACHE_SIZE, mQueryCache.size());
+            }
+            return stats;
+        } else if (WeatherContract.METHOD_GET_FORECAST.equals(method)) {
+            return getForecast(arg, extras).toBundle();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Reads the days of the location asked for by METHOD_GET_FORECAST, from the published
+     * snapshot when it holds them.  Nothing is registered for notifications.
+     */
+    private ForecastSnapshot getForecast(String locationSetting, Bundle extras) {
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Forecasts need a location setting");
+        }
+        long startDate = System.currentTimeMillis();
+        int limit = -1;
+        if (extras != null) {
+            startDate = extras.getLong(WeatherContract.EXTRA_START_DATE, startDate);
+            limit = extras.getInt(WeatherContract.EXTRA_LIMIT, limit);
+        }
+
+        ForecastSnapshot published =
+                ForecastSnapshot.getPublished(locationSetting, startDate, limit);
+        if (published != null) {
+            return published;
+        }
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, startDate);
+        if (limit != -1) {
+            uri = WeatherContract.WeatherEntry.withLimit(uri, limit, 0);
+        }
+        Cursor cursor = getWeatherByLocationSettingCached(uri, ForecastSnapshot.SNAPSHOT_COLUMNS,
+                sDaySortOrder);
+        try {
+            return ForecastSnapshot.fromCursor(locationSetting, cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Inserts the rows of the batch in one transaction, like bulkInsert() does with
+     * ContentValues.
+     * @return the number of rows inserted
+     */
+    int bulkInsertWeather(WeatherBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = 0;
+        db.beginTransaction();
+        WeatherInserter inserter = new WeatherInserter(db);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (inserter.insert(batch, i) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+        mOpenHelper.onBatchCommitted(db);
+        invalidateCaches(null);
+        notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+        return returnCount;
+    }
+
+    /**
+     * Writes the weather rows, matching them to the stored rows on (date, location_id).
+     * New rows are inserted and rows whose values differ are updated in place, which keeps
+     * their _id.  Identical rows aren't written at all.  Only the location/date URIs of the
+     * rows written are notified, once the transaction is committed.
+     */
+    UpsertResult upsertWeather(ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        UpsertResult result = new UpsertResult();
+
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                upsertWeatherRow(db, value, result);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mOpenHelper.onBatchCommitted(db);
+
+        notifyUpserted(result);
+        return result;
+    }
+
+    /**
+     * Upserts a single weather row, the way upsertWeather(ContentValues[]) does, for batches.
+     * @return the URI of the row, telling what happened to it.  See
+     * {@link WeatherContract.WeatherEntry#buildWeatherUpsertResultUri}.
+     */
+    private Uri upsertWeather(Uri uri, ContentValues values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        UpsertResult result = new UpsertResult();
+        long _id;
+
+        db.beginTransaction();
+        try {
+            _id = upsertWeatherRow(db, values, result);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (_id == -1) {
+            throw new android.database.SQLException("Failed to insert row into " + uri);
+        }
+
+        notifyUpserted(result);
+        String outcome = result.inserted > 0 ? WeatherContract.WeatherEntry.UPSERT_INSERTED :
+                result.changed > 0 ? WeatherContract.WeatherEntry.UPSERT_CHANGED :
+                        WeatherContract.WeatherEntry.UPSERT_UNCHANGED;
+        return WeatherContract.WeatherEntry.buildWeatherUpsertResultUri(
+                _id, outcome, result.temperatureDelta, result.conditionChanges > 0);
+    }
+
+    /**
+     * Upserts one row within the caller's transaction and adds its outcome to the result.
+     * @return the _id of the row, or -1 if it couldn't be inserted
+     */
+    private long upsertWeatherRow(SQLiteDatabase db, ContentValues value, UpsertResult result) {
+        normalizeDate(value);
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            throw new IllegalArgumentException(
+                    "Upserted weather rows need a location and a date");
+        }
+
+        long _id;
+        Cursor storedCursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), value.getAsString(
+                        WeatherContract.WeatherEntry.COLUMN_EPOCH_DAY)},
+                null,
+                null,
+                null);
+        try {
+            if (!storedCursor.moveToFirst()) {
+                _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                if (_id == -1) {
+                    return -1;
+                }
+                result.inserted++;
+            } else {
+                _id = storedCursor.getLong(
+                        storedCursor.getColumnIndex(WeatherContract.WeatherEntry._ID));
+                if (!hasChanged(storedCursor, value)) {
+                    result.unchanged++;
+                    return _id;
+                }
+                db.update(WeatherContract.WeatherEntry.TABLE_NAME, value,
+                        WeatherContract.WeatherEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+                result.changed++;
+                measureChange(storedCursor, value, result);
+            }
+        } finally {
+            storedCursor.close();
+        }
+
+        String locationSetting = result.changedLocations.get(locationId);
+        if (locationSetting == null) {
+            locationSetting = getLocationSetting(db, locationId);
+            result.changedLocations.put(locationId, locationSetting);
+        }
+        result.changedUris.add(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, date));
+        return _id;
+    }
+
+    private void notifyUpserted(UpsertResult result) {
+        for (int i = 0; i < result.changedLocations.size(); i++) {
+            invalidateCaches(result.changedLocations.valueAt(i));
+        }
+        for (Uri changedUri : result.changedUris) {
+            notifyChange(changedUri);
+        }
+    }
+
+    /**
+     * Adds how far the temperatures and the condition of a changed row moved to the result.
+     */
+    private static void measureChange(Cursor stored, ContentValues values, UpsertResult result) {
+        Double high = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        Double low = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        if (high != null && low != null) {
+            double storedHigh = stored.getDouble(
+                    stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+            double storedLow = stored.getDouble(
+                    stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+            result.temperatureDelta +=
+                    (Math.abs(high - storedHigh) + Math.abs(low - storedLow)) / 2;
+        }
+        Integer weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        if (weatherId != null && weatherId != stored.getInt(
+                stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID))) {
+            result.conditionChanges++;
+        }
+    }
+
+    private static String getLocationSetting(SQLiteDatabase db, long locationId) {
+        Cursor locationCursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                null);
+        try {
+            if (locationCursor.moveToFirst()) {
+                return locationCursor.getString(0);
+            }
+            // Weather rows always belong to a stored location
+            throw new android.database.SQLException("Unknown location " + locationId);
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    /**
+     * @return true if any of the values differs from the value stored in the current row
+     */
+    private static boolean hasChanged(Cursor stored, ContentValues values) {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = stored.getColumnIndex(entry.getKey());
+            if (index == -1) {
+                // Let the update report the unknown column
+                return true;
+            }
+
+            Object value = entry.getValue();
+            if (value == null || stored.isNull(index)) {
+                if (value != null || !stored.isNull(index)) {
+                    return true;
+                }
+            } else if (value instanceof Double || value instanceof Float) {
+                if (Double.compare(stored.getDouble(index), ((Number) value).doubleValue()) != 0) {
+                    return true;
+                }
+            } else if (value instanceof Number) {
+                if (stored.getLong(index) != ((Number) value).longValue()) {
+                    return true;
+                }
+            } else if (value instanceof Boolean) {
+                if (stored.getLong(index) != ((Boolean) value ? 1 : 0)) {
+                    return true;
+                }
+            } else if (value instanceof byte[]) {
+                if (!Arrays.equals(stored.getBlob(index), (byte[]) value)) {
+                    return true;
+                }
+            } else if (!value.toString().equals(stored.getString(index))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Decides when forecast requests may be sent to OpenWeatherMap.
+ *
+ * Failed requests are retried a few times with jittered exponential backoff.  Once enough
+ * forecasts in a row have failed, retries included, the circuit opens: requests are refused
+ * without touching the network until a backoff delay has passed, after which a single trial
+ * request decides whether the circuit closes again.  Independently, requests made with an API key are rate limited by a
+ * token bucket so bursts of manual refreshes stay within the key's quota.
+ *
+ * The state is process-wide, so that every sync shares it.
+ */
+public class FetchPolicy {
+    private static final String LOG_TAG = FetchPolicy.class.getSimpleName();
+
+    // Attempts made for one forecast within a sync, and the delay before the first retry
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BASE_MILLIS = 1000;
+
+    // Failed forecasts in a row that open the circuit, counting a forecast once however many
+    // attempts it took, and how long it then stays open.  The delay doubles with every further
+    // failure, up to the sync interval.
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BACKOFF_BASE_MILLIS = 60 * 1000;
+    private static final long BACKOFF_MAX_MILLIS = SunshineSyncAdapter.SYNC_INTERVAL * 1000L;
+
+    // OpenWeatherMap's free plan allows 60 calls a minute
+    private static final int BUCKET_CAPACITY = 10;
+    private static final double TOKENS_PER_SECOND = 1;
+
+    private static FetchPolicy sInstance;
+
+    /**
+     * One try at fetching a forecast.  Called again for every retry, so it must start over
+     * from scratch each time.
+     */
+    public interface Attempt {
+        ForecastFetcher.Result run() throws IOException, JSONException;
+    }
+
+    /**
+     * Thrown instead of sending a request while the circuit is open or the API key is out of
+     * requests.
+     */
+    public static class RejectedException extends IOException {
+        // How long to wait before the request would be allowed
+        public final long retryAfterMillis;
+
+        RejectedException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    private static class TokenBucket {
+        final int mCapacity;
+        final double mTokensPerMilli;
+        double mTokens;
+        long mLastRefill;
+
+        TokenBucket(int capacity, double tokensPerSecond, long now) {
+            mCapacity = capacity;
+            mTokensPerMilli = tokensPerSecond / 1000;
+            mTokens = capacity;
+            mLastRefill = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise the time until the next token
+         */
+        long tryAcquire(long now) {
+            mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerMilli);
+            mLastRefill = now;
+            if (mTokens >= 1) {
+                mTokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - mTokens) / mTokensPerMilli);
+        }
+    }
+
+    private final int mMaxAttempts;
+    private final long mRetryBaseMillis;
+    private final int mFailureThreshold;
+    private final long mBackoffBaseMillis;
+    private final long mBackoffMaxMillis;
+    private final int mBucketCapacity;
+    private final double mTokensPerSecond;
+    private final Random mRandom = new Random();
+
+    // Circuit breaker state, guarded by this
+    private int mConsecutiveFailures;
+    // Zero while the circuit is closed
+    private long mOpenUntil;
+    private boolean mTrialInFlight;
+    private final HashMap<String, TokenBucket> mBuckets = new HashMap<String, TokenBucket>();
+
+    public static synchronized FetchPolicy getInstance() {
+        if (sInstance == null) {
+            sInstance = new FetchPolicy(MAX_ATTEMPTS, RETRY_BASE_MILLIS, FAILURE_THRESHOLD,
+                    BACKOFF_BASE_MILLIS, BACKOFF_MAX_MILLIS, BUCKET_CAPACITY, TOKENS_PER_SECOND);
+        }
+        return sInstance;
+    }
+
+    FetchPolicy(int maxAttempts, long retryBaseMillis, int failureThreshold,
+                long backoffBaseMillis, long backoffMaxMillis, int bucketCapacity,
+                double tokensPerSecond) {
+        mMaxAttempts = maxAttempts;
+        mRetryBaseMillis = retryBaseMillis;
+        mFailureThreshold = failureThreshold;
+        mBackoffBaseMillis = backoffBaseMillis;
+        mBackoffMaxMillis = backoffMaxMillis;
+        mBucketCapacity = bucketCapacity;
+        mTokensPerSecond = tokensPerSecond;
+    }
+
+    /**
+     * Runs the attempt, retrying it while it fails and the policy allows it.
+     *
+     * @param apiKey the API key the requests are made with, for rate limiting
+     * @return the result of the first attempt the server answered properly, or of the last
+     * attempt if the server kept answering with an error code
+     * @throws RejectedException if the policy refused to send the first request.  A retry
+     * refused after a failure fails the way that attempt did instead.
+     */
+    public ForecastFetcher.Result execute(String apiKey, Attempt attempt)
+            throws IOException, JSONException {
+        // How the last attempt failed, to report if the policy refuses the retry
+        IOException lastException = null;
+        ForecastFetcher.Result lastResult = null;
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            try {
+                acquire(apiKey);
+            } catch (RejectedException e) {
+                if (lastException != null) {
+                    Log.d(LOG_TAG, "Retry refused: " + e.getMessage());
+                    onFailure();
+                    throw lastException;
+                } else if (lastResult != null) {
+                    Log.d(LOG_TAG, "Retry refused: " + e.getMessage());
+                    onFailure();
+                    return lastResult;
+                }
+                throw e;
+            }
+
+            ForecastFetcher.Result result;
+            try {
+                result = attempt.run();
+            } catch (IOException e) {
+                if (!canRetry(attemptNumber)) {
+                    onFailure();
+                    throw e;
+                }
+                lastException = e;
+                lastResult = null;
+                Log.d(LOG_TAG, "Attempt " + attemptNumber + " failed, retrying", e);
+                sleep(jitter(backoff(mRetryBaseMillis, attemptNumber)));
+                continue;
+            } catch (JSONException e) {
+                // The server is up, it just sent something we can't read.  Retrying won't help.
+                onSuccess();
+                throw e;
+            }
+
+            if (!isServerError(result.messageCode)) {
+                onSuccess();
+                return result;
+            }
+            if (!canRetry(attemptNumber)) {
+                onFailure();
+                return result;
+            }
+            lastException = null;
+            lastResult = result;
+            Log.d(LOG_TAG, "Attempt " + attemptNumber + " got " + result.messageCode +
+                    ", retrying");
+            sleep(jitter(backoff(mRetryBaseMillis, attemptNumber)));
+        }
+    }
+
+    /**
+     * @return how long to wait before requests will be sent again, 0 if they can be sent now
+     */
+    public synchronized long getRetryDelayMillis() {
+        if (mOpenUntil == 0) {
+            return 0;
+        }
+        return Math.max(0, mOpenUntil - SystemClock.elapsedRealtime());
+    }
+
+    private synchronized void acquire(String apiKey) throws RejectedException {
+        long now = SystemClock.elapsedRealtime();
+        if (mOpenUntil != 0) {
+            if (now < mOpenUntil) {
+                throw new RejectedException("Circuit open", mOpenUntil - now);
+            } else if (mTrialInFlight) {
+                throw new RejectedException("Circuit half open", mRetryBaseMillis);
+            }
+            // Half open: let this one request through to see if the server is back
+            mTrialInFlight = true;
+        }
+
+        TokenBucket bucket = mBuckets.get(apiKey);
+        if (bucket == null) {
+            bucket = new TokenBucket(mBucketCapacity, mTokensPerSecond, now);
+            mBuckets.put(apiKey, bucket);
+        }
+        long wait = bucket.tryAcquire(now);
+        if (wait > 0) {
+            mTrialInFlight = false;
+            throw new RejectedException("Rate limited", wait);
+        }
+    }
+
+    /**
+     * @return true if a failed attempt may be retried.  A trial request of the half open
+     * circuit isn't, its failure opens the circuit again right away.
+     */
+    private synchronized boolean canRetry(int attemptNumber) {
+        return attemptNumber < mMaxAttempts && !mTrialInFlight;
+    }
+
+    private synchronized void onSuccess() {
+        mConsecutiveFailures = 0;
+        mOpenUntil = 0;
+        mTrialInFlight = false;
+    }
+
+    /**
+     * Counts a forecast that failed, once whatever number of attempts it took.
+     */
+    private synchronized void onFailure() {
+        mConsecutiveFailures++;
+        mTrialInFlight = false;
+        if (mConsecutiveFailures >= mFailureThreshold) {
+            long delay = jitter(Math.min(mBackoffMaxMillis, backoff(mBackoffBaseMillis,
+                    mConsecutiveFailures - mFailureThreshold + 1)));
+            mOpenUntil = SystemClock.elapsedRealtime() + delay;
+            Log.d(LOG_TAG, "Circuit open for " + delay + "ms after " +
+                    mConsecutiveFailures + " failures");
+        }
+    }
+
+    private static boolean isServerError(int messageCode) {
+        return messageCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || messageCode == 429;
+    }
+
+    /**
+     * @return base doubled for every attempt after the first
+     */
+    private static long backoff(long base, int attempt) {
+        // Don't shift the bits out
+        return base << Math.min(attempt - 1, 20);
+    }
+
+    /**
+     * @return a random delay between half the given delay and the full delay, so that clients
+     * failing together don't retry together
+     */
+    private synchronized long jitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+}
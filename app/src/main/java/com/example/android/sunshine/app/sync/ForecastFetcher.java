@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import org.json.JSONException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fetches a forecast with a conditional request.
+ *
+ * The validators returned by the previous fetch of a location (ETag, Last-Modified and a hash
+ * of the body) are sent back to the server.  When the server answers 304, or sends a body
+ * identical to the previous one, the result is marked unchanged and the caller can skip
+ * everything that would have followed.
+ */
+public class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String BODY_HASH_ALGORITHM = "SHA-1";
+
+    /**
+     * Cache validators of a forecast response.  Any of them may be null.
+     */
+    public static class Validators {
+        public final String etag;
+        public final String lastModified;
+        public final String bodyHash;
+
+        public Validators(String etag, String lastModified, String bodyHash) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.bodyHash = bodyHash;
+        }
+
+        boolean sameAs(Validators other) {
+            return other != null && TextUtils.equals(etag, other.etag) &&
+                    TextUtils.equals(lastModified, other.lastModified) &&
+                    TextUtils.equals(bodyHash, other.bodyHash);
+        }
+    }
+
+    public static class Result {
+        // The HTTP response code
+        public final int responseCode;
+        // The "cod" sent by OpenWeatherMap in the body, HTTP_OK if there was no body
+        public final int messageCode;
+        // True if the forecast is the same as the one the validators were taken from
+        public final boolean unchanged;
+        // Validators to send with the next request for this location
+        public final Validators validators;
+        // True if the validators aren't the ones sent, which has them saved even when the
+        // forecast is unchanged, say when the server sends a new ETag for the same body
+        public final boolean validatorsChanged;
+
+        Result(int responseCode, int messageCode, boolean unchanged, Validators validators,
+               boolean validatorsChanged) {
+            this.responseCode = responseCode;
+            this.messageCode = messageCode;
+            this.unchanged = unchanged;
+            this.validators = validators;
+            this.validatorsChanged = validatorsChanged;
+        }
+    }
+
+    private ForecastFetcher() {
+    }
+
+    /**
+     * Stream that keeps track of the bytes read through it, and of the time spent waiting
+     * for them.
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        long mBytes;
+        long mWallNanos;
+        long mCpuNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long wallStart = System.nanoTime();
+            long cpuStart = Debug.threadCpuTimeNanos();
+            int read = super.read();
+            meter(wallStart, cpuStart, read == -1 ? 0 : 1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long wallStart = System.nanoTime();
+            long cpuStart = Debug.threadCpuTimeNanos();
+            int read = super.read(buffer, offset, count);
+            meter(wallStart, cpuStart, Math.max(read, 0));
+            return read;
+        }
+
+        private void meter(long wallStart, long cpuStart, int bytes) {
+            mWallNanos += System.nanoTime() - wallStart;
+            mCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+            mBytes += bytes;
+        }
+    }
+
+    public static Result fetch(URL url, Validators cached, OwmForecastParser.Callback callback)
+            throws IOException, JSONException {
+        return fetch(url, cached, callback, new SyncMetrics());
+    }
+
+    /**
+     * Requests the forecast at the given url and parses it into the callback.  Nothing is
+     * reported to the callback when the server answers 304 Not Modified.
+     *
+     * The time spent connecting, downloading and parsing is added to the metrics.  Since the
+     * forecast is parsed as it arrives, the time spent waiting for the body counts as download
+     * and the rest of the time spent on the body counts as parse.
+     *
+     * @param cached validators from the last stored response, or null to fetch unconditionally
+     */
+    public static Result fetch(URL url, Validators cached, OwmForecastParser.Callback callback,
+                               SyncMetrics metrics) throws IOException, JSONException {
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        try {
+            SyncMetrics.Phase connect = metrics.begin(SyncMetricsEntry.PHASE_CONNECT);
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            if (cached != null) {
+                if (cached.etag != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, cached.lastModified);
+                }
+            }
+            urlConnection.connect();
+
+            int responseCode = urlConnection.getResponseCode();
+            connect.end(0);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                return new Result(responseCode, HttpURLConnection.HTTP_OK, true, cached, false);
+            }
+
+            long bodyWallStart = System.nanoTime();
+            long bodyCpuStart = Debug.threadCpuTimeNanos();
+            MeteredInputStream meteredStream = new MeteredInputStream(urlConnection.getInputStream());
+            inputStream = meteredStream;
+            MessageDigest digest = newBodyDigest();
+            if (digest != null) {
+                inputStream = new DigestInputStream(inputStream, digest);
+            }
+
+            int messageCode = OwmForecastParser.parse(inputStream, callback);
+
+            String bodyHash = null;
+            if (digest != null) {
+                // The parser stops at the end of the document, hash whatever follows it too
+                byte[] rest = new byte[256];
+                while (inputStream.read(rest) != -1) {
+                    // Keep reading
+                }
+                bodyHash = toHex(digest.digest());
+            }
+
+            metrics.add(SyncMetricsEntry.PHASE_DOWNLOAD, meteredStream.mWallNanos,
+                    meteredStream.mCpuNanos, meteredStream.mBytes);
+            metrics.add(SyncMetricsEntry.PHASE_PARSE,
+                    System.nanoTime() - bodyWallStart - meteredStream.mWallNanos,
+                    Debug.threadCpuTimeNanos() - bodyCpuStart - meteredStream.mCpuNanos, 0);
+
+            Validators validators = new Validators(
+                    urlConnection.getHeaderField(HEADER_ETAG),
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED),
+                    bodyHash);
+            boolean unchanged = cached != null && bodyHash != null &&
+                    bodyHash.equals(cached.bodyHash);
+            return new Result(responseCode, messageCode, unchanged, validators,
+                    !validators.sameAs(cached));
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    private static MessageDigest newBodyDigest() {
+        try {
+            return MessageDigest.getInstance(BODY_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Not fatal, we just won't be able to detect identical bodies
+            Log.e(LOG_TAG, BODY_HASH_ALGORITHM + " not available", e);
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
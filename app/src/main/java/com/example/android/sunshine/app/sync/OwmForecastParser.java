@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Pull parser for the OpenWeatherMap daily forecast response.
+ *
+ * Instead of reading the whole response into a String and building an org.json object tree,
+ * the response is read token by token straight from the connection and every day is handed to
+ * a {@link Callback} as soon as it has been read.  Peak memory use no longer depends on the
+ * size of the payload.
+ */
+public class OwmForecastParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to check that every required field of a day was present
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int ALL_DAY_FIELDS = (1 << 8) - 1;
+
+    /**
+     * Receives the parsed values.  The city may be reported before or after the days,
+     * depending on the order in which the server sends them.
+     */
+    public interface Callback {
+        void onCity(String cityName, double latitude, double longitude);
+
+        void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                   double windDirection, double high, double low, String description,
+                   int weatherId);
+    }
+
+    private OwmForecastParser() {
+    }
+
+    /**
+     * Parses the forecast read from the given stream.  The stream is not closed.
+     *
+     * @return the message code sent by the server, {@link HttpURLConnection#HTTP_OK} if none
+     * was sent.  Days reported for any other code should be discarded.
+     */
+    public static int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(new InputStreamReader(in, "UTF-8"), callback);
+        } else {
+            String forecastJsonStr = readFully(new InputStreamReader(in, "UTF-8"));
+            if (forecastJsonStr.length() == 0) {
+                // Stream was empty.  No point in parsing.
+                throw new EOFException("Empty forecast response");
+            }
+            return parseTree(forecastJsonStr, callback);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseStreaming(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int messageCode = HttpURLConnection.HTTP_OK;
+            boolean hasCity = false;
+            boolean hasList = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    messageCode = reader.nextInt();
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                    hasCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, callback);
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (messageCode == HttpURLConnection.HTTP_OK && !(hasCity && hasList)) {
+                throw new JSONException("No value for " + (hasCity ? OWM_LIST : OWM_CITY));
+            }
+            return messageCode;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Keep the contract of the tree parser: anything that isn't the expected document
+            // is a JSONException, only failures of the stream itself are IOExceptions.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        latitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+        callback.onCity(cityName, latitude, longitude);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDays(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int dayIndex = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader, dayIndex++, callback);
+        }
+        reader.endArray();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDay(JsonReader reader, int dayIndex, Callback callback)
+            throws IOException, JSONException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+        int fields = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                fields |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                // JSONObject.getInt() truncates fractional values, so do the same here
+                humidity = (int) reader.nextDouble();
+                fields |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                fields |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                fields |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        high = reader.nextDouble();
+                        fields |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        low = reader.nextDouble();
+                        fields |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            fields |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = (int) reader.nextDouble();
+                            fields |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.peek() != JsonToken.END_ARRAY) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fields != ALL_DAY_FIELDS) {
+            throw new JSONException("Incomplete forecast for day " + dayIndex);
+        }
+        callback.onDay(dayIndex, pressure, humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    /**
+     * The original object tree based parser.  Still used on devices without
+     * {@link JsonReader}, and kept as the baseline the streaming parser is measured against.
+     */
+    static int parseTree(String forecastJsonStr, Callback callback) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        callback.onCity(cityName,
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            callback.onDay(i,
+                    dayForecast.getDouble(OWM_PRESSURE),
+                    dayForecast.getInt(OWM_HUMIDITY),
+                    dayForecast.getDouble(OWM_WINDSPEED),
+                    dayForecast.getDouble(OWM_WIND_DIRECTION),
+                    temperatureObject.getDouble(OWM_MAX),
+                    temperatureObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    static String readFully(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        StringBuilder buffer = new StringBuilder();
+        char[] chunk = new char[4096];
+        int read;
+        while ((read = reader.read(chunk)) != -1) {
+            buffer.append(chunk, 0, read);
+        }
+        return buffer.toString();
+    }
+}
@@ -7,11 +7,13 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,36 +24,50 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.SettingsSnapshot;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.LocationCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.example.android.sunshine.app.wearable.WearableUpdateTask;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -63,21 +79,28 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Number of days of forecast requested for each location
+    private static final int NUM_DAYS = 14;
+
+    // Locations are fetched in parallel, but OpenWeatherMap shouldn't see more than a couple of
+    // connections from us at once.
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final int MAX_FETCHES_PER_HOST = 2;
+    private static final long SYNC_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static ExecutorService sFetchExecutor;
+    // The consumers of a new forecast that block, on the network or on Google Play services,
+    // run on their own threads so they never hold up the next sync's fetches
+    private static final int FAN_OUT_THREADS = 2;
+    private static ExecutorService sFanOutExecutor;
+    private static final HashMap<String, Semaphore> sHostPermits = new HashMap<String, Semaphore>();
+
+    // Locations the user preferred lately, which are synced along with the preferred one.
+    // Fewer than the requests the fetch policy lets through at once, so that a sync is never
+    // rate limited by its own locations.
+    static final int MAX_SAVED_LOCATIONS = 5;
+    private static final String SAVED_LOCATIONS_SEPARATOR = "\n";
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -95,268 +118,510 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        SyncMetrics metrics = new SyncMetrics();
+        SyncMetrics.Phase sync = metrics.begin(SyncMetricsEntry.PHASE_SYNC);
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+
+        // Fetch the forecast of every saved location at once
+        ArrayList<LocationSync> locationSyncs = new ArrayList<LocationSync>();
+        for (String locationSetting : getLocationsToSync(preferredLocation)) {
+            locationSyncs.add(new LocationSync(locationSetting, metrics));
+        }
+        try {
+            getFetchExecutor().invokeAll(locationSyncs);
+        } catch (InterruptedException e) {
+            // The sync was cancelled
+            Log.d(LOG_TAG, "Sync cancelled");
+            return;
+        }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        storeWeatherData(locationSyncs, preferredLocation, syncResult, metrics);
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        sync.end(locationSyncs.size());
+        saveSyncMetrics(metrics);
+    }
 
+    /**
+     * Helper method to build the OpenWeatherMap request for a location.
+     */
+    static URL buildForecastUrl(String locationQuery) throws MalformedURLException {
         String format = "json";
         String units = "metric";
-        int numDays = 14;
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String FORECAST_BASE_URL =
+                "http://api.openweathermap.org/data/2.5/forecast/daily?";
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+    /**
+     * Helper method to list the locations a sync refreshes: the saved locations, the preferred
+     * one first.  The preferred location is saved here, in front of the ones preferred before
+     * it, and the ones past MAX_SAVED_LOCATIONS are no longer saved.
+     */
+    private Collection<String> getLocationsToSync(String preferredLocation) {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String savedLocationsKey = context.getString(R.string.pref_saved_locations);
+        LinkedHashSet<String> locations = new LinkedHashSet<String>();
+        locations.add(preferredLocation);
+
+        String savedLocations = prefs.getString(savedLocationsKey, "");
+        for (String locationSetting : TextUtils.split(savedLocations, SAVED_LOCATIONS_SEPARATOR)) {
+            if (locations.size() == MAX_SAVED_LOCATIONS) {
+                break;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (locationSetting.length() > 0) {
+                locations.add(locationSetting);
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+        }
+
+        String updatedLocations = TextUtils.join(SAVED_LOCATIONS_SEPARATOR, locations);
+        if (!updatedLocations.equals(savedLocations)) {
+            prefs.edit().putString(savedLocationsKey, updatedLocations).apply();
+        }
+        return locations;
+    }
+
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null) {
+            sFetchExecutor = newSyncExecutor(MAX_CONCURRENT_FETCHES);
+        }
+        return sFetchExecutor;
+    }
+
+    private static synchronized ExecutorService getFanOutExecutor() {
+        if (sFanOutExecutor == null) {
+            sFanOutExecutor = newSyncExecutor(FAN_OUT_THREADS);
+        }
+        return sFanOutExecutor;
+    }
+
+    private static ExecutorService newSyncExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                SYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        // Don't keep idle threads around between syncs
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Semaphore getHostPermits(String host) {
+        synchronized (sHostPermits) {
+            Semaphore permits = sHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(MAX_FETCHES_PER_HOST, true);
+                sHostPermits.put(host, permits);
             }
+            return permits;
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Fetches the forecast of one location.  Runs on the fetch executor; the outcome is kept
+     * for the sync thread, which stores the results of all locations together.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    private class LocationSync implements Callable<Void>, FetchPolicy.Attempt {
+        final String mLocationSetting;
+        final ForecastCollector mForecast = new ForecastCollector(NUM_DAYS);
+        final SyncMetrics mMetrics;
+        ForecastFetcher.Result mResult;
+        Exception mError;
+
+        LocationSync(String locationSetting, SyncMetrics metrics) {
+            mLocationSetting = locationSetting;
+            mMetrics = metrics;
+        }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+        @Override
+        public Void call() {
+            try {
+                mResult = FetchPolicy.getInstance().execute(
+                        BuildConfig.OPEN_WEATHER_MAP_API_KEY, this);
+            } catch (IOException | JSONException | RuntimeException e) {
+                // Kept for storeWeatherData, invokeAll would drop it with the Future.  A
+                // RuntimeException, say from reading the validators, only fails this location.
+                mError = e;
+            }
+            return null;
+        }
 
-        // These are the names of the JSON objects that need to be extracted.
+        @Override
+        public ForecastFetcher.Result run() throws IOException, JSONException {
+            // Forget whatever a failed attempt managed to read
+            mForecast.reset();
+
+            URL url = buildForecastUrl(mLocationSetting);
+            ForecastFetcher.Validators cached =
+                    getForecastValidators(mLocationSetting, mForecast.mStartDay);
+
+            // Don't open more connections to a host than it should have to serve at once
+            Semaphore hostPermits = getHostPermits(url.getHost());
+            try {
+                hostPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Sync cancelled");
+            }
+            try {
+                // Request the forecast, parsing it straight off the connection
+                return ForecastFetcher.fetch(url, cached, mForecast, mMetrics);
+            } finally {
+                hostPermits.release();
+            }
+        }
+    }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    /**
+     * Collects the days reported by {@link OwmForecastParser} into the ContentValues that are
+     * written to the database.  Rows are built as the days come off the stream; the location
+     * key is filled in once the location row is known.
+     */
+    private static class ForecastCollector implements OwmForecastParser.Callback {
+        final ArrayList<ContentValues> mDays;
+        // Epoch day of the first day
+        final int mStartDay;
+        String mCityName;
+        double mCityLatitude;
+        double mCityLongitude;
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        ForecastCollector(int expectedDays) {
+            mDays = new ArrayList<ContentValues>(expectedDays);
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+            // OWM returns daily forecasts based upon the local time of the city that is being
+            // asked for, which means that we need to know the GMT offset to translate this data
+            // properly.
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+            // Since this data is also sent in-order and the first day is always the
+            // current day, we're going to take advantage of that to get a nice
+            // normalized date for all of our weather.
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+            // we start at the day returned by local time. Otherwise this is a mess.
+            mStartDay = WeatherContract.getEpochDay(System.currentTimeMillis());
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            mCityName = cityName;
+            mCityLatitude = latitude;
+            mCityLongitude = longitude;
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            ContentValues weatherValues = new ContentValues();
+
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.getDayStart(mStartDay + dayIndex));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+
+            mDays.add(weatherValues);
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        void reset() {
+            mDays.clear();
+            mCityName = null;
+        }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        long getPruneDate() {
+            return WeatherContract.getDayStart(mStartDay - 1);
+        }
+    }
+
+    /**
+     * Store the forecasts fetched for every location, along with the validators to send with
+     * the next request for each of them.  The locations, the forecast rows, the validators and
+     * the pruning of old days are applied as one batch, so observers wake up once per sync.
+     */
+    private void storeWeatherData(List<LocationSync> locationSyncs, String preferredLocation,
+                                  SyncResult syncResult, SyncMetrics metrics) {
+        Context context = getContext();
+        HashMap<String, Integer> locationStatuses = new HashMap<String, Integer>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // Location setting of each weather row in the batch, null for the other operations
+        ArrayList<String> operationLocations = new ArrayList<String>();
+        ArrayList<String> storedLocations = new ArrayList<String>();
+        long retryDelay = FetchPolicy.getInstance().getRetryDelayMillis();
+        // Days of the preferred location that replaced a stored day, to tell how much its
+        // forecast is moving.  The other locations don't decide how often to sync.
+        int comparedDays = 0;
+        double temperatureDelta = 0;
+        int conditionChanges = 0;
+        boolean preferredLocationChanged = false;
+        long pruneDate = 0;
+
+        for (LocationSync locationSync : locationSyncs) {
+            String locationSetting = locationSync.mLocationSetting;
+            ForecastFetcher.Result result = locationSync.mResult;
+
+            if (locationSync.mError instanceof FetchPolicy.RejectedException) {
+                // Not sent at all, so nothing is known about the server.  Keep the location's
+                // status and ask to be synced again once the request would be allowed.
+                FetchPolicy.RejectedException rejected =
+                        (FetchPolicy.RejectedException) locationSync.mError;
+                Log.d(LOG_TAG, "Not fetching " + locationSetting + ": " + rejected.getMessage());
+                retryDelay = Math.max(retryDelay, rejected.retryAfterMillis);
+                continue;
+            } else if (locationSync.mError instanceof IOException) {
+                Log.e(LOG_TAG, "Error fetching " + locationSetting, locationSync.mError);
+                // If the code didn't successfully get the weather data, there's no point in
+                // attempting to parse it.
+                syncResult.stats.numIoExceptions++;
+                locationStatuses.put(locationSetting, LOCATION_STATUS_SERVER_DOWN);
+                continue;
+            } else if (locationSync.mError instanceof RuntimeException || result == null) {
+                // Failed here rather than on the server, nothing is known about the location
+                Log.e(LOG_TAG, "Error syncing " + locationSetting, locationSync.mError);
+                syncResult.stats.numSkippedEntries++;
+                locationStatuses.put(locationSetting, LOCATION_STATUS_UNKNOWN);
+                continue;
+            } else if (locationSync.mError != null) {
+                Log.e(LOG_TAG, locationSync.mError.getMessage(), locationSync.mError);
+                syncResult.stats.numParseExceptions++;
+                locationStatuses.put(locationSetting, LOCATION_STATUS_SERVER_INVALID);
+                continue;
+            } else if (result.unchanged) {
+                // Same forecast as the one we already have, nothing to store or tell anyone.
+                // New validators for it still have to be sent next time.
+                Log.d(LOG_TAG, locationSetting + " unchanged (HTTP " + result.responseCode + ")");
+                if (result.validatorsChanged) {
+                    operations.add(ContentProviderOperation.newUpdate(
+                            WeatherContract.LocationEntry.CONTENT_URI)
+                            .withValues(buildValidatorValues(result.validators,
+                                    locationSync.mForecast.mStartDay))
+                            .withSelection(
+                                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                                    new String[]{locationSetting})
+                            .build());
+                    operationLocations.add(null);
+                }
+                syncResult.stats.numSkippedEntries++;
+                if (locationSetting.equals(preferredLocation)) {
+                    comparedDays += NUM_DAYS;
                 }
+                locationStatuses.put(locationSetting, LOCATION_STATUS_OK);
+                continue;
             }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+            // do we have an error?
+            switch (result.messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    syncResult.stats.numSkippedEntries++;
+                    locationStatuses.put(locationSetting, LOCATION_STATUS_INVALID);
+                    continue;
+                default:
+                    syncResult.stats.numIoExceptions++;
+                    locationStatuses.put(locationSetting, LOCATION_STATUS_SERVER_DOWN);
+                    continue;
+            }
 
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+            ForecastCollector forecast = locationSync.mForecast;
+            if (forecast.mDays.size() > 0) {
+                addLocationOperations(operations, operationLocations, locationSetting, forecast,
+                        result.validators);
+                storedLocations.add(locationSetting);
+                pruneDate = Math.max(pruneDate, forecast.getPruneDate());
+            }
+            locationStatuses.put(locationSetting, LOCATION_STATUS_OK);
+        }
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        // add to database
+        if ( operations.size() > 0 ) {
+            // move past days to the archive, so the weather table doesn't build up an endless
+            // history and the trend views still have it
+            int pruneOperation = operations.size();
+            operations.add(ContentProviderOperation.newDelete(
+                    WeatherContract.WeatherEntry.buildWeatherArchiveUri(
+                            Utility.getHistoryDays(context)))
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(pruneDate)})
+                    .build());
+
+            ContentProviderResult[] results = null;
+            SyncMetrics.Phase applyBatch = metrics.begin(SyncMetricsEntry.PHASE_APPLY_BATCH);
+            try {
+                results = context.getContentResolver().applyBatch(
+                        WeatherContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error storing the forecasts", e);
+                syncResult.databaseError = true;
+                for (String locationSetting : storedLocations) {
+                    locationStatuses.put(locationSetting, LOCATION_STATUS_UNKNOWN);
+                }
+            }
+            applyBatch.end(operations.size());
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+            if (results != null) {
+                for (int i = 0; i < pruneOperation; i++) {
+                    String locationSetting = operationLocations.get(i);
+                    if (locationSetting == null) {
+                        continue;
+                    }
+                    boolean preferred = locationSetting.equals(preferredLocation);
+                    Uri rowUri = results[i].uri;
+                    String outcome = WeatherContract.WeatherEntry.getUpsertOutcomeFromUri(rowUri);
+                    if (WeatherContract.WeatherEntry.UPSERT_UNCHANGED.equals(outcome)) {
+                        syncResult.stats.numSkippedEntries++;
+                        if (preferred) {
+                            comparedDays++;
+                        }
+                        continue;
+                    } else if (WeatherContract.WeatherEntry.UPSERT_CHANGED.equals(outcome)) {
+                        syncResult.stats.numUpdates++;
+                        if (preferred) {
+                            comparedDays++;
+                            temperatureDelta += WeatherContract.WeatherEntry
+                                    .getTemperatureDeltaFromUri(rowUri);
+                            if (WeatherContract.WeatherEntry.isConditionChangedUri(rowUri)) {
+                                conditionChanges++;
+                            }
+                        }
+                    } else {
+                        syncResult.stats.numInserts++;
+                    }
+                    if (preferred) {
+                        preferredLocationChanged = true;
+                    }
+                }
+                syncResult.stats.numDeletes += results[pruneOperation].count;
+            }
+        }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        // Everything that shows weather only shows the preferred location
+        if (preferredLocationChanged) {
+            fanOut(preferredLocation, metrics);
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + syncResult.stats.numInserts + " Inserted, " +
+                syncResult.stats.numUpdates + " Updated for " +
+                storedLocations.size() + " of " + locationSyncs.size() + " locations");
+        setLocationStatuses(context, locationStatuses);
+
+        Integer preferredLocationStatus = locationStatuses.get(preferredLocation);
+        SyncScheduler.onSyncFinished(context, temperatureDelta, conditionChanges, comparedDays,
+                preferredLocationStatus != null && preferredLocationStatus == LOCATION_STATUS_OK);
+
+        if (retryDelay > 0) {
+            // Keep the SyncManager from starting syncs that the fetch policy would refuse.
+            // delayUntil is in seconds since the epoch.
+            syncResult.delayUntil = (System.currentTimeMillis() + retryDelay) / 1000;
+        }
+    }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    private void saveSyncMetrics(SyncMetrics metrics) {
+        getContext().getContentResolver().bulkInsert(
+                SyncMetricsEntry.CONTENT_URI, metrics.toContentValues());
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * One step of the fan-out, timed on the thread it runs on.
+     */
+    private abstract class FanOutStep implements Callable<Void> {
+        private final String mPhase;
+        private final SyncMetrics mMetrics;
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+        FanOutStep(String phase, SyncMetrics metrics) {
+            mPhase = phase;
+            mMetrics = metrics;
+        }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+        abstract void perform();
+
+        @Override
+        public Void call() {
+            SyncMetrics.Phase phase = mMetrics.begin(mPhase);
+            try {
+                perform();
+            } catch (RuntimeException e) {
+                // One consumer failing shouldn't keep the others from updating
+                Log.e(LOG_TAG, "Error in " + mPhase, e);
+            } finally {
+                phase.end(0);
             }
+            return null;
+        }
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+    /**
+     * Hands the new forecast of the preferred location to everything that shows it.  The
+     * forecast is read once into a snapshot that all the consumers share.  The notification and
+     * the wearable, which block on loading art and on connecting, run in parallel on the fan-out
+     * threads, the notification first.  The widgets and Muzei only send an intent, which the
+     * sync thread does meanwhile.
+     */
+    private void fanOut(String preferredLocation, SyncMetrics metrics) {
+        SyncMetrics.Phase snapshotPhase = metrics.begin(SyncMetricsEntry.PHASE_SNAPSHOT);
+        final ForecastSnapshot snapshot = ForecastSnapshot.load(getContext(), preferredLocation);
+        snapshotPhase.end(snapshot == null ? 0 : snapshot.size());
+        if (snapshot == null) {
+            return;
+        }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+        ArrayList<Future<Void>> blockingSteps = new ArrayList<Future<Void>>();
+        blockingSteps.add(getFanOutExecutor().submit(
+                new FanOutStep(SyncMetricsEntry.PHASE_NOTIFY_WEATHER, metrics) {
+                    @Override
+                    void perform() {
+                        notifyWeather(snapshot);
+                    }
+                }));
+        blockingSteps.add(getFanOutExecutor().submit(
+                new FanOutStep(SyncMetricsEntry.PHASE_UPDATE_WEARABLE, metrics) {
+                    @Override
+                    void perform() {
+                        updateWearable();
+                    }
+                }));
 
+        new FanOutStep(SyncMetricsEntry.PHASE_UPDATE_WIDGETS, metrics) {
+            @Override
+            void perform() {
                 updateWidgets();
+            }
+        }.call();
+        new FanOutStep(SyncMetricsEntry.PHASE_UPDATE_MUZEI, metrics) {
+            @Override
+            void perform() {
                 updateMuzei();
-                notifyWeather();
-                updateWearable();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        }.call();
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        try {
+            for (Future<Void> step : blockingSteps) {
+                step.get();
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The steps log their own errors
+            Log.e(LOG_TAG, "Error handing out the forecast", e.getCause());
         }
     }
 
@@ -378,7 +643,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(ForecastSnapshot snapshot) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -393,18 +658,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                long now = System.currentTimeMillis();
+                int today = snapshot.firstIndexOnOrAfter(now);
 
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today < snapshot.size() &&
+                        snapshot.getDate(today) == WeatherContract.normalizeDate(now)) {
+                    int weatherId = snapshot.getWeatherId(today);
+                    double high = snapshot.getHigh(today);
+                    double low = snapshot.getLow(today);
+                    String desc = snapshot.getDescription(today);
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -480,62 +742,125 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
 
     private void updateWearable() {
-        new WearableUpdateTask(getContext()).execute();
+        // Already off the main thread, no need for the task
+        WearableUpdateTask.update(getContext());
     }
+
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Helper method to add the operations storing a location's forecast to a batch: the
+     * location itself unless it is already known, its days, and the cache validators of the
+     * forecast.  The validators are stored in the same batch as the forecast they describe.
      *
+     * @param operations The batch to add to.
+     * @param operationLocations The location setting of each operation in the batch that
+     *                           writes a day, null for the others.
      * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @param forecast The forecast fetched for the location.
+     * @param validators The cache validators of the forecast.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    private static void addLocationOperations(ArrayList<ContentProviderOperation> operations,
+                                              ArrayList<String> operationLocations,
+                                              String locationSetting, ForecastCollector forecast,
+                                              ForecastFetcher.Validators validators) {
+        // First, check if the location was already looked up or stored in this process.
+        // Otherwise let the provider find it, or insert it, and refer to its result.
+        LocationCache.Entry cachedLocation = LocationCache.get(locationSetting);
+        int locationOperation = -1;
+        if (cachedLocation == null) {
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.mCityName);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.mCityLatitude);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, forecast.mCityLongitude);
+
+            locationOperation = operations.size();
+            operations.add(ContentProviderOperation.newInsert(
+                    WeatherContract.LocationEntry.buildLocationGetOrInsertUri())
+                    .withValues(locationValues)
+                    .build());
+            operationLocations.add(null);
+        }
+
+        for (ContentValues dayValues : forecast.mDays) {
+            ContentProviderOperation.Builder day = ContentProviderOperation.newInsert(
+                    WeatherContract.WeatherEntry.buildWeatherUpsertUri())
+                    .withValues(dayValues);
+            if (cachedLocation != null) {
+                day.withValue(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, cachedLocation.getId());
+            } else {
+                day.withValueBackReference(
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationOperation);
+            }
+            operations.add(day.build());
+            operationLocations.add(locationSetting);
+        }
+
+        ContentProviderOperation.Builder saveValidators = ContentProviderOperation.newUpdate(
+                WeatherContract.LocationEntry.CONTENT_URI)
+                .withValues(buildValidatorValues(validators, forecast.mStartDay));
+        if (cachedLocation != null) {
+            saveValidators.withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(cachedLocation.getId())});
+        } else {
+            saveValidators.withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                    new String[1])
+                    .withSelectionBackReference(0, locationOperation);
+        }
+        operations.add(saveValidators.build());
+        operationLocations.add(null);
+    }
 
-        // First, check if the location with this city name exists in the db
+    /**
+     * @return the location columns saving the validators of a forecast fetched on the day,
+     * which the provider doesn't drop its cached queries for
+     */
+    private static ContentValues buildValidatorValues(ForecastFetcher.Validators validators,
+                                                      int epochDay) {
+        ContentValues validatorValues = new ContentValues();
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, validators.etag);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, validators.lastModified);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_BODY_HASH, validators.bodyHash);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_VALIDATED_DAY, epochDay);
+        return validatorValues;
+    }
+
+    /**
+     * Helper method to read the cache validators stored with a location's forecast.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param epochDay The day the forecast is being fetched on
+     * @return the validators, or null if there are none usable on that day.
+     */
+    private ForecastFetcher.Validators getForecastValidators(String locationSetting, int epochDay) {
         Cursor locationCursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
+                new String[]{
+                        WeatherContract.LocationEntry.COLUMN_ETAG,
+                        WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+                        WeatherContract.LocationEntry.COLUMN_BODY_HASH,
+                        WeatherContract.LocationEntry.COLUMN_VALIDATED_DAY},
                 WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
                 new String[]{locationSetting},
                 null);
 
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+        if (locationCursor == null) {
+            return null;
+        }
+        ForecastFetcher.Validators validators = null;
+        // The stored dates depend on the day the forecast was fetched, so a forecast from
+        // another day has to be stored again even if the server's copy is the same.
+        if (locationCursor.moveToFirst() && !locationCursor.isNull(3) &&
+                locationCursor.getInt(3) == epochDay) {
+            validators = new ForecastFetcher.Validators(locationCursor.getString(0),
+                    locationCursor.getString(1), locationCursor.getString(2));
         }
-
         locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        return validators;
     }
 
     /**
@@ -630,15 +955,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Sets the location status into shared preference.  This function should not be called from
-     * the UI thread because it uses commit to write to the shared preferences.
+     * Sets the status of each location into shared preferences.  This function should not be
+     * called from the UI thread because it uses commit to write to the shared preferences.
      * @param c Context to get the PreferenceManager from.
-     * @param locationStatus The IntDef value to set
+     * @param locationStatuses The IntDef value to set, by location setting
      */
-    static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
+    static private void setLocationStatuses(Context c, Map<String, Integer> locationStatuses){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
+        for (Map.Entry<String, Integer> locationStatus : locationStatuses.entrySet()) {
+            spe.putInt(Utility.getLocationStatusKey(c, locationStatus.getKey()),
+                    locationStatus.getValue());
+        }
         spe.commit();
+        SettingsSnapshot.refresh(c);
     }
-}
\ No newline at end of file
+}
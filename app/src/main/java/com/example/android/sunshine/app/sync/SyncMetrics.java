@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall clock time, thread CPU time and item counts of the phases of one sync, written to the
+ * sync metrics table once the sync is over.
+ *
+ * Phases may be measured from several threads at once; a phase measured more than once is
+ * summed.
+ */
+public class SyncMetrics {
+    private static final int WALL_TIME = 0;
+    private static final int CPU_TIME = 1;
+    private static final int ITEMS = 2;
+
+    private final long mSyncStart = System.currentTimeMillis();
+    // Wall time and CPU time in nanoseconds, and items, by phase
+    private final LinkedHashMap<String, long[]> mPhases = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Measures one run of a phase on the thread that started it.
+     */
+    public class Phase {
+        private final String mName;
+        private final long mWallStart = System.nanoTime();
+        private final long mCpuStart = Debug.threadCpuTimeNanos();
+
+        Phase(String name) {
+            mName = name;
+        }
+
+        public void end(long items) {
+            add(mName, System.nanoTime() - mWallStart,
+                    Debug.threadCpuTimeNanos() - mCpuStart, items);
+        }
+    }
+
+    public Phase begin(String phase) {
+        return new Phase(phase);
+    }
+
+    public synchronized void add(String phase, long wallNanos, long cpuNanos, long items) {
+        long[] totals = mPhases.get(phase);
+        if (totals == null) {
+            totals = new long[3];
+            mPhases.put(phase, totals);
+        }
+        totals[WALL_TIME] += wallNanos;
+        totals[CPU_TIME] += cpuNanos;
+        totals[ITEMS] += items;
+    }
+
+    /**
+     * @return the sync metrics rows of the phases measured so far
+     */
+    public synchronized ContentValues[] toContentValues() {
+        ContentValues[] rows = new ContentValues[mPhases.size()];
+        int i = 0;
+        for (Map.Entry<String, long[]> phase : mPhases.entrySet()) {
+            long[] totals = phase.getValue();
+            ContentValues row = new ContentValues();
+            row.put(SyncMetricsEntry.COLUMN_SYNC_START, mSyncStart);
+            row.put(SyncMetricsEntry.COLUMN_PHASE, phase.getKey());
+            row.put(SyncMetricsEntry.COLUMN_WALL_TIME, totals[WALL_TIME] / 1000);
+            row.put(SyncMetricsEntry.COLUMN_CPU_TIME, totals[CPU_TIME] / 1000);
+            row.put(SyncMetricsEntry.COLUMN_ITEMS, totals[ITEMS]);
+            rows[i++] = row;
+        }
+        return rows;
+    }
+}
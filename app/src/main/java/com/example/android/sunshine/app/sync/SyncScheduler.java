@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.widget.DetailWidgetProvider;
+import com.example.android.sunshine.app.widget.TodayWidgetProvider;
+
+/**
+ * Picks the interval of the periodic sync.
+ *
+ * The starting point is {@link SunshineSyncAdapter#SYNC_INTERVAL}.  Forecasts that barely
+ * moved over the last syncs are synced less often and forecasts that keep changing more often.
+ * Nobody looking at the app or a widget for days stretches the interval further, and it never
+ * goes past the point where the stored forecast becomes stale.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 12 * 60 * 60;
+
+    // A forecast not refreshed for this long is stale
+    static final long STALE_AFTER_MILLIS = MAX_INTERVAL * 1000L;
+
+    // Volatility, in degrees per day, at or below which a forecast counts as stable and at or
+    // above which it counts as volatile.  A changed condition counts as CONDITION_WEIGHT
+    // degrees.
+    static final double STABLE_VOLATILITY = 0.5;
+    static final double VOLATILE_VOLATILITY = 2;
+    static final double CONDITION_WEIGHT = 3;
+    // Scales applied to the base interval for stable and volatile forecasts
+    static final double STABLE_SCALE = 2;
+    static final double VOLATILE_SCALE = 0.5;
+    // Weight of the latest sync in the running volatility
+    static final double VOLATILITY_SMOOTHING = 0.3;
+
+    // Scales applied when the app hasn't been opened for a while and there are no widgets
+    static final long ACTIVE_WINDOW_MILLIS = DateUtils.DAY_IN_MILLIS;
+    static final long IDLE_WINDOW_MILLIS = 7 * DateUtils.DAY_IN_MILLIS;
+    static final double INACTIVE_SCALE = 1.5;
+    static final double IDLE_SCALE = 3;
+
+    // Don't reprogram the periodic sync for smaller changes than this
+    static final double RESCHEDULE_THRESHOLD = 0.1;
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Records that the forecast was looked at.  Coming back after a while shortens the interval
+     * again right away.  Reading the preferences and reprogramming the sync happen in the
+     * background, as this is called from the UI thread.
+     */
+    public static void noteUiUsed(Context context) {
+        new NoteUiUsedTask(context.getApplicationContext()).execute();
+    }
+
+    private static class NoteUiUsedTask extends AsyncTask<Void, Void, Void> {
+        private final Context mContext;
+
+        NoteUiUsedTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            noteUiUsedNow(mContext);
+            return null;
+        }
+    }
+
+    private static void noteUiUsedNow(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String lastUiUseKey = context.getString(R.string.pref_last_ui_use);
+        long now = System.currentTimeMillis();
+        long lastUiUse = prefs.getLong(lastUiUseKey, 0);
+        prefs.edit().putLong(lastUiUseKey, now).apply();
+
+        if (now - lastUiUse > ACTIVE_WINDOW_MILLIS) {
+            reschedule(context);
+        }
+    }
+
+    /**
+     * Folds what the sync changed into the running volatility and reprograms the periodic
+     * sync if needed.  The volatility only follows the preferred location, whose forecast is
+     * the one shown, so saving more locations doesn't change the interval.
+     *
+     * @param temperatureDelta sum over the compared days of how far their temperatures moved
+     * @param conditionChanges number of compared days whose condition changed
+     * @param comparedDays number of days of the preferred location that replaced a stored day,
+     *                     including identical ones
+     * @param refreshed true if the preferred location's forecast is now up to date
+     */
+    static void onSyncFinished(Context context, double temperatureDelta, int conditionChanges,
+                               int comparedDays, boolean refreshed) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (comparedDays > 0) {
+            String volatilityKey = context.getString(R.string.pref_sync_volatility);
+            double latest = (temperatureDelta + CONDITION_WEIGHT * conditionChanges) / comparedDays;
+            double volatility = prefs.contains(volatilityKey) ?
+                    VOLATILITY_SMOOTHING * latest +
+                            (1 - VOLATILITY_SMOOTHING) * prefs.getFloat(volatilityKey, 0) :
+                    latest;
+            editor.putFloat(volatilityKey, (float) volatility);
+        }
+        if (refreshed) {
+            editor.putLong(context.getString(R.string.pref_last_refresh),
+                    System.currentTimeMillis());
+        }
+        editor.commit();
+
+        reschedule(context);
+    }
+
+    private static void reschedule(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+        double volatility = prefs.getFloat(context.getString(R.string.pref_sync_volatility),
+                (float) STABLE_VOLATILITY);
+        long lastRefresh = prefs.getLong(context.getString(R.string.pref_last_refresh), now);
+        long lastUiUse = prefs.getLong(context.getString(R.string.pref_last_ui_use), now);
+
+        int interval = computeInterval(volatility, now - lastRefresh, now - lastUiUse,
+                hasWidgets(context));
+
+        String intervalKey = context.getString(R.string.pref_sync_interval);
+        int currentInterval = prefs.getInt(intervalKey, SunshineSyncAdapter.SYNC_INTERVAL);
+        if (Math.abs(interval - currentInterval) > currentInterval * RESCHEDULE_THRESHOLD) {
+            Log.d(LOG_TAG, "Sync interval " + currentInterval + "s -> " + interval + "s");
+            SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+            prefs.edit().putInt(intervalKey, interval).apply();
+        }
+    }
+
+    /**
+     * @param volatility running volatility of the forecast, in degrees per day
+     * @param millisSinceRefresh time since the preferred location's forecast was refreshed
+     * @param millisSinceUiUse time since the app was last opened
+     * @param hasWidgets true if any widget is on the home screen
+     * @return the periodic sync interval, in seconds
+     */
+    static int computeInterval(double volatility, long millisSinceRefresh, long millisSinceUiUse,
+                               boolean hasWidgets) {
+        double scale;
+        if (volatility <= STABLE_VOLATILITY) {
+            scale = STABLE_SCALE;
+        } else if (volatility >= VOLATILE_VOLATILITY) {
+            scale = VOLATILE_SCALE;
+        } else {
+            double position = (volatility - STABLE_VOLATILITY) /
+                    (VOLATILE_VOLATILITY - STABLE_VOLATILITY);
+            scale = STABLE_SCALE + position * (VOLATILE_SCALE - STABLE_SCALE);
+        }
+
+        if (!hasWidgets) {
+            if (millisSinceUiUse > IDLE_WINDOW_MILLIS) {
+                scale *= IDLE_SCALE;
+            } else if (millisSinceUiUse > ACTIVE_WINDOW_MILLIS) {
+                scale *= INACTIVE_SCALE;
+            }
+        }
+
+        long interval = Math.round(SunshineSyncAdapter.SYNC_INTERVAL * scale);
+
+        // Get there before the forecast goes stale
+        long untilStale = (STALE_AFTER_MILLIS - millisSinceRefresh) / 1000;
+        interval = Math.min(interval, untilStale);
+
+        return (int) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    private static boolean hasWidgets(Context context) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        return appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, TodayWidgetProvider.class)).length > 0 ||
+                appWidgetManager.getAppWidgetIds(
+                        new ComponentName(context, DetailWidgetProvider.class)).length > 0;
+    }
+}
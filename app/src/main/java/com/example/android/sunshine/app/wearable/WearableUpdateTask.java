@@ -1,14 +1,12 @@
 package com.example.android.sunshine.app.wearable;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.example.android.sunshine.app.Utility;
-import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
@@ -27,17 +25,6 @@ public class WearableUpdateTask extends AsyncTask<Void, Void, Void>{
     private static final String HIGH_TEMP_KEY = "com.example.android.sunshine.app.hightemp";
     private static final String LOW_TEMP_KEY = "com.example.android.sunshine.app.lowtemp";
 
-    private static final String[] FORECAST_COLUMNS = {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-
     private Context mContext;
 
     public WearableUpdateTask(Context context) {
@@ -46,37 +33,40 @@ public class WearableUpdateTask extends AsyncTask<Void, Void, Void>{
 
     @Override
     protected Void doInBackground(Void... params) {
-        GoogleApiClient apiClient = new GoogleApiClient.Builder(mContext)
+        update(mContext);
+        return null;
+    }
+
+    /**
+     * Sends today's forecast of the preferred location to the wearable.  Blocks while
+     * connecting, so it must not be called from the UI thread.
+     */
+    public static void update(Context context) {
+        GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
                 .addApi(Wearable.API)
                 .build();
 
         if (!apiClient.isConnected()) {
             apiClient.blockingConnect(30, TimeUnit.SECONDS);
             if (!apiClient.isConnected())
-                return null;
+                return;
         }
 
-        // Get today's data from the ContentProvider
-        String location = Utility.getPreferredLocation(mContext);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = mContext.getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
-        if (data == null) {
-            return null;
-        }
-        if (!data.moveToFirst()) {
-            data.close();
-            return null;
+        // Get today's data, from the snapshot published by the sync when it has it
+        String location = Utility.getPreferredLocation(context);
+        ForecastSnapshot data =
+                ForecastSnapshot.fetch(context, location, System.currentTimeMillis(), 1);
+        if (data == null || data.size() == 0) {
+            apiClient.disconnect();
+            return;
         }
 
-        // Extract the weather data from the Cursor
-        int weatherId = data.getInt(INDEX_WEATHER_ID);
-        double maxTemp = data.getDouble(INDEX_MAX_TEMP);
-        double minTemp = data.getDouble(INDEX_MIN_TEMP);
-        String formattedMaxTemperature = Utility.formatTemperature(mContext, maxTemp);
-        String formattedMinTemperature = Utility.formatTemperature(mContext, minTemp);
-        data.close();
+        // Extract the weather data from the snapshot
+        int weatherId = data.getWeatherId(0);
+        double maxTemp = data.getHigh(0);
+        double minTemp = data.getLow(0);
+        String formattedMaxTemperature = Utility.formatTemperature(context, maxTemp);
+        String formattedMinTemperature = Utility.formatTemperature(context, minTemp);
 
         PutDataMapRequest dataMapRequest = PutDataMapRequest.create(FORECAST_PATH);
         DataMap dataMap = dataMapRequest.getDataMap();
@@ -99,6 +89,5 @@ public class WearableUpdateTask extends AsyncTask<Void, Void, Void>{
         });
 
         apiClient.disconnect();
-        return null;
     }
 }
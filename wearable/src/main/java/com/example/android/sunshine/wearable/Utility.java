@@ -3,6 +3,42 @@ package com.example.android.sunshine.wearable;
 
 public class Utility {
 
+    // Based on weather code data found at:
+    // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
+    // Codes after the last one have no icon.
+    private static final int FIRST_CODE = 200;
+    private static final int LAST_CODE = 804;
+
+    // The icons by condition code, from FIRST_CODE, 0 for the codes without one.  Like the
+    // phone's WeatherConditions table, so the watch face finds an icon in a single read.
+    private static final int[] ICONS = new int[LAST_CODE - FIRST_CODE + 1];
+    private static final int[] AMBIENT_ICONS = new int[LAST_CODE - FIRST_CODE + 1];
+
+    static {
+        // A code in more than one range gets the icon of the first one
+        setIcons(200, 232, R.drawable.ic_storm, R.drawable.ic_storm_ambient);
+        setIcons(300, 321, R.drawable.ic_light_rain, R.drawable.ic_light_rain_ambient);
+        setIcons(500, 504, R.drawable.ic_rain, R.drawable.ic_rain_ambient);
+        setIcons(511, 511, R.drawable.ic_snow, R.drawable.ic_snow_ambient);
+        setIcons(520, 531, R.drawable.ic_rain, R.drawable.ic_rain_ambient);
+        setIcons(600, 622, R.drawable.ic_snow, R.drawable.ic_snow_ambient);
+        setIcons(701, 761, R.drawable.ic_fog, R.drawable.ic_fog_ambient);
+        setIcons(761, 761, R.drawable.ic_storm, R.drawable.ic_storm_ambient);
+        setIcons(781, 781, R.drawable.ic_storm, R.drawable.ic_storm_ambient);
+        setIcons(800, 800, R.drawable.ic_clear, R.drawable.ic_clear_ambient);
+        setIcons(801, 801, R.drawable.ic_light_clouds, R.drawable.ic_light_clouds_ambient);
+        setIcons(802, 804, R.drawable.ic_cloudy, R.drawable.ic_cloudy_ambient);
+    }
+
+    private static void setIcons(int firstCode, int lastCode, int icon, int ambientIcon) {
+        for (int code = firstCode; code <= lastCode; code++) {
+            if (ICONS[code - FIRST_CODE] == 0) {
+                ICONS[code - FIRST_CODE] = icon;
+                AMBIENT_ICONS[code - FIRST_CODE] = ambientIcon;
+            }
+        }
+    }
+
     /**
      * Helper method to provide the icon resource id according to the weather condition id returned
      * by the OpenWeatherMap call.
@@ -10,32 +46,11 @@ public class Utility {
      * @return resource id for the corresponding icon. -1 if no relation is found.
      */
     public static int getIconResourceForWeatherCondition(int weatherId, boolean inAmbientMode) {
-        // Based on weather code data found at:
-        // http://bugs.openweathermap.org/projects/api/wiki/Weather_Condition_Codes
-        if (weatherId >= 200 && weatherId <= 232) {
-            return inAmbientMode ? R.drawable.ic_storm_ambient : R.drawable.ic_storm;
-        } else if (weatherId >= 300 && weatherId <= 321) {
-            return inAmbientMode ? R.drawable.ic_light_rain_ambient : R.drawable.ic_light_rain;
-        } else if (weatherId >= 500 && weatherId <= 504) {
-            return inAmbientMode ? R.drawable.ic_rain_ambient : R.drawable.ic_rain;
-        } else if (weatherId == 511) {
-            return inAmbientMode ? R.drawable.ic_snow_ambient : R.drawable.ic_snow;
-        } else if (weatherId >= 520 && weatherId <= 531) {
-            return inAmbientMode ? R.drawable.ic_rain_ambient : R.drawable.ic_rain;
-        } else if (weatherId >= 600 && weatherId <= 622) {
-            return inAmbientMode ? R.drawable.ic_snow_ambient : R.drawable.ic_snow;
-        } else if (weatherId >= 701 && weatherId <= 761) {
-            return inAmbientMode ? R.drawable.ic_fog_ambient : R.drawable.ic_fog;
-        } else if (weatherId == 761 || weatherId == 781) {
-            return inAmbientMode ? R.drawable.ic_storm_ambient : R.drawable.ic_storm;
-        } else if (weatherId == 800) {
-            return inAmbientMode ? R.drawable.ic_clear_ambient : R.drawable.ic_clear;
-        } else if (weatherId == 801) {
-            return inAmbientMode ? R.drawable.ic_light_clouds_ambient : R.drawable.ic_light_clouds;
-        } else if (weatherId >= 802 && weatherId <= 804) {
-            return inAmbientMode ? R.drawable.ic_cloudy_ambient : R.drawable.ic_cloudy;
+        if (weatherId < FIRST_CODE || weatherId > LAST_CODE) {
+            return -1;
         }
-        return -1;
+        int icon = (inAmbientMode ? AMBIENT_ICONS : ICONS)[weatherId - FIRST_CODE];
+        return icon == 0 ? -1 : icon;
     }
 
 }